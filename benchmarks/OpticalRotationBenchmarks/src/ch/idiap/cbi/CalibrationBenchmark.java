@@ -0,0 +1,97 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the calibration math on synthetic point sets. The full pipelines are
+ * slow on large sets: restrict the sizes with -Djmh.args="-p points=3,100".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CalibrationBenchmark {
+
+    @Param({ "3", "100", "1000", "10000", "100000" })
+    public int points;
+
+    private double[][] points_;
+    private CircleFittingFunction function_;
+    private CircleFittingFunction sequentialFunction_;
+    private final CalibrationEngine engine_ = new CalibrationEngine();
+    private final CalibrationEngine lsqEngine_ = new CalibrationEngine(CalibrationEngine.Solver.LEVENBERG_MARQUARDT);
+    private final double[] parameters_ = new double[] { SyntheticPoints.CENTRE_Z + 5, SyntheticPoints.CENTRE_X - 5,
+            SyntheticPoints.RADIUS, SyntheticPoints.THETA0 };
+
+    @Setup
+    public void setup() {
+        points_ = SyntheticPoints.generate(points, 1, 42);
+        function_ = new CircleFittingFunction(points_[0], points_[1], points_[2], 1,
+                CalibrationEngine.Z_ERROR_WEIGHT);
+        sequentialFunction_ = new CircleFittingFunction(points_[0], points_[1], points_[2], points, 1,
+                CalibrationEngine.Z_ERROR_WEIGHT, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public double circleFittingValue() {
+        return function_.value(parameters_);
+    }
+
+    @Benchmark
+    public double circleFittingValueSequential() {
+        return sequentialFunction_.value(parameters_);
+    }
+
+    @Benchmark
+    public CalibrationResult calibrate() {
+        return engine_.calibrate(points_[0], points_[1], points_[2], 1, null);
+    }
+
+    @Benchmark
+    public CalibrationResult calibrateLevenbergMarquardt() {
+        return lsqEngine_.calibrate(points_[0], points_[1], points_[2], 1, null);
+    }
+
+    @Benchmark
+    public double[] calibrateAlgebraic() {
+        return CalibrationEngine.fitAlgebraic(points_[0], points_[1], points_[2], 1);
+    }
+
+    @Benchmark
+    public double[] computeTilt() {
+        return engine_.computeTilt(points_[1], points_[2], points_[3]);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+import java.util.Map;
+import mmcorej.CMMCore;
+
+/**
+ * In-memory core with instantaneous stages, usable without the native
+ * MMCoreJ library. Only the calls used by the rotation code are supported.
+ */
+public class MockCore extends CMMCore {
+
+    public static final String XY_STAGE = "XYStage";
+    public static final String Z_STAGE = "ZStage";
+    public static final String R_STAGE = "RStage";
+
+    private final Map<String, Double> positions_ = new HashMap<>();
+    private double x_ = 0.0;
+    private double y_ = 0.0;
+
+    public MockCore() {
+        // null native pointer, never owned: no native call is made
+        super(0, false);
+    }
+
+    @Override
+    public String getXYStageDevice() {
+        return XY_STAGE;
+    }
+
+    @Override
+    public double getXPosition() {
+        return x_;
+    }
+
+    @Override
+    public double getYPosition() {
+        return y_;
+    }
+
+    @Override
+    public double getXPosition(String device) {
+        return x_;
+    }
+
+    @Override
+    public double getYPosition(String device) {
+        return y_;
+    }
+
+    @Override
+    public Point2D.Double getXYStagePosition() {
+        return new Point2D.Double(x_, y_);
+    }
+
+    @Override
+    public Point2D.Double getXYStagePosition(String device) {
+        return new Point2D.Double(x_, y_);
+    }
+
+    @Override
+    public void setXYPosition(double x, double y) {
+        x_ = x;
+        y_ = y;
+    }
+
+    @Override
+    public void setXYPosition(String device, double x, double y) {
+        setXYPosition(x, y);
+    }
+
+    @Override
+    public void setRelativeXYPosition(double dx, double dy) {
+        x_ += dx;
+        y_ += dy;
+    }
+
+    @Override
+    public void setRelativeXYPosition(String device, double dx, double dy) {
+        setRelativeXYPosition(dx, dy);
+    }
+
+    @Override
+    public double getPosition(String device) {
+        Double position = positions_.get(device);
+        return position == null ? 0.0 : position;
+    }
+
+    @Override
+    public void setPosition(String device, double position) {
+        positions_.put(device, position);
+    }
+
+    @Override
+    public void setRelativePosition(String device, double offset) {
+        positions_.put(device, getPosition(device) + offset);
+    }
+
+    @Override
+    public boolean deviceBusy(String device) {
+        return false;
+    }
+
+    @Override
+    public void waitForDevice(String device) {
+    }
+
+    @Override
+    public void logMessage(String msg) {
+    }
+
+    @Override
+    public void logMessage(String msg, boolean debugOnly) {
+    }
+
+    @Override
+    public void delete() {
+    }
+}
@@ -0,0 +1,127 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import mmcorej.CMMCore;
+import org.micromanager.LogManager;
+import org.micromanager.Studio;
+import org.micromanager.UserProfile;
+import org.micromanager.events.EventManager;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Headless Studio stand-in: exposes a core, an in-memory user profile and
+ * silent log and event managers.
+ */
+public final class MockStudio {
+
+    private MockStudio() {
+    }
+
+    public static Studio create(final CMMCore core) {
+        final MutablePropertyMapView settings = newSettings();
+        final UserProfile profile = proxy(UserProfile.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getSettings")) {
+                    return settings;
+                }
+                return unsupported(proxy, method, args);
+            }
+        });
+        final EventManager events = proxy(EventManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+        final LogManager logs = proxy(LogManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+
+        return proxy(Studio.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                case "core":
+                case "getCMMCore":
+                    return core;
+                case "profile":
+                case "getUserProfile":
+                    return profile;
+                case "events":
+                case "getEventManager":
+                    return events;
+                case "logs":
+                case "getLogManager":
+                    return logs;
+                default:
+                    return unsupported(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    private static MutablePropertyMapView newSettings() {
+        final Map<String, Object> values = new ConcurrentHashMap<>();
+        return proxy(MutablePropertyMapView.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.startsWith("get") && args != null && args.length == 2) {
+                    Object value = values.get(args[0]);
+                    return value == null ? args[1] : value;
+                } else if (name.startsWith("put") && args != null && args.length == 2) {
+                    values.put((String) args[0], args[1]);
+                    return proxy;
+                } else if (name.startsWith("contains") && args != null && args.length >= 1) {
+                    return values.containsKey(args[0]);
+                } else if (name.equals("keySet")) {
+                    return values.keySet();
+                }
+                return unsupported(proxy, method, args);
+            }
+        });
+    }
+
+    private static Object unsupported(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("toString")) {
+            return "Mock" + proxy.getClass().getInterfaces()[0].getSimpleName();
+        } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(MockStudio.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+}
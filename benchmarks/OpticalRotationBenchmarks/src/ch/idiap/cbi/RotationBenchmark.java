@@ -0,0 +1,90 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.concurrent.TimeUnit;
+import org.micromanager.Studio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the rotation compensation math, on a mock core.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+
+    private OpticalRotation rotation_;
+    private OpticalRotation tableRotation_;
+    private OpticalRotation.PolarSystem polar_;
+    private final double[] origin_ = new double[] { 1500.0, 2300.0 };
+    private final double[] out_ = new double[2];
+    private double angle_;
+
+    @Setup
+    public void setup() throws Exception {
+        MockCore core = new MockCore();
+        core.setPosition(MockCore.Z_STAGE, origin_[0]);
+        core.setXYPosition(origin_[1], 0.0);
+
+        Studio studio = MockStudio.create(core);
+        rotation_ = new OpticalRotation(studio, MockCore.Z_STAGE, MockCore.R_STAGE);
+        rotation_.registerCalibration(SyntheticPoints.CENTRE_Z, SyntheticPoints.CENTRE_X, 1, true);
+        polar_ = rotation_.newPolarSystem();
+
+        // Same Studio, hence same calibration
+        tableRotation_ = new OpticalRotation(studio, MockCore.Z_STAGE, MockCore.R_STAGE);
+        tableRotation_.setCompensationStep(1.0);
+
+        core.setPosition(MockCore.R_STAGE, 37.5);
+    }
+
+    @Benchmark
+    public double[] computeRotationCompensation() {
+        angle_ += 1.0;
+        rotation_.computeRotationCompensation(angle_, origin_, false, out_);
+        return out_;
+    }
+
+    @Benchmark
+    public double[] computeRotationCompensationTable() {
+        angle_ += 1.0;
+        tableRotation_.computeRotationCompensation(angle_, origin_, false, out_);
+        return out_;
+    }
+
+    @Benchmark
+    public double[] polarCentreZX() throws Exception {
+        return polar_.getCentreZX();
+    }
+}
@@ -0,0 +1,65 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.Random;
+
+/**
+ * Reproducible calibration point sets: a sample point rotating around a
+ * slightly tilted axis, measured with gaussian noise.
+ */
+public final class SyntheticPoints {
+
+    public static final double CENTRE_Z = 1200.0;
+    public static final double CENTRE_X = 2000.0;
+    public static final double RADIUS = 350.0;
+    public static final double THETA0 = 0.3;
+    public static final double TILT_SLOPE = 0.02;
+    public static final double NOISE = 0.5;
+
+    private SyntheticPoints() {
+    }
+
+    /**
+     * Generate points evenly spread over one turn
+     * 
+     * @param count     number of points
+     * @param direction rotation direction
+     * @param seed
+     * @return the motor angles in radians, Z, X and Y coordinates of the points
+     */
+    public static double[][] generate(int count, int direction, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[4][count];
+        for (int i = 0; i < count; i++) {
+            double r = 2 * Math.PI * i / count;
+            double angle = THETA0 + direction * r;
+            double z = CENTRE_Z + RADIUS * Math.cos(angle) + NOISE * random.nextGaussian();
+            double x = CENTRE_X + RADIUS * Math.sin(angle) + NOISE * random.nextGaussian();
+            double y = 500.0 + TILT_SLOPE * (z - CENTRE_Z) + NOISE * random.nextGaussian();
+            points[0][i] = r;
+            points[1][i] = z;
+            points[2][i] = x;
+            points[3][i] = y;
+        }
+        return points;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * AxisCommandQueue merging, with the drain tasks run by the check so that the
+ * interleaving of moves and requests is fixed.
+ */
+final class AxisQueueCheck implements Runnable {
+
+    /**
+     * Records the moves, can fail the next one or add requests during a move
+     */
+    private static class RecordingMover implements AxisCommandQueue.Mover {
+        final List<String> moves = new ArrayList<>();
+        boolean fail = false;
+
+        @Override
+        public void move(double first, double second) {
+            moves.add(first + "," + second);
+            if (fail) {
+                fail = false;
+                throw new IllegalStateException("move failed");
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        mergesRequestsDuringAMove();
+        dropsCancellingRequests();
+        clearDropsPendingRequests();
+        recoversFromAFailedMove();
+        recoversFromARejectedDrain();
+    }
+
+    private static void mergesRequestsDuringAMove() {
+        final ManualExecutor executor = new ManualExecutor();
+        final AxisCommandQueue[] queue = new AxisCommandQueue[1];
+        RecordingMover mover = new RecordingMover() {
+            @Override
+            public void move(double first, double second) {
+                super.move(first, second);
+                if (moves.size() == 1) {
+                    // Clicks while the stage moves
+                    queue[0].add(2.0, -1.0);
+                    queue[0].add(3.0, 0.5);
+                    Check.equal(0, executor.tasks.size(), "no drain task while draining");
+                }
+            }
+        };
+        queue[0] = new AxisCommandQueue(executor, mover);
+
+        queue[0].add(1.0, 1.0);
+        queue[0].add(1.0, 1.0);
+        Check.equal(1, executor.tasks.size(), "one drain task");
+        Check.equal(2, queue[0].getPendingCount(), "pending requests");
+
+        executor.runNext();
+        Check.equal(2, mover.moves.size(), "move count");
+        Check.equal("2.0,2.0", mover.moves.get(0), "requests before the move");
+        Check.equal("5.0,-0.5", mover.moves.get(1), "requests during the move");
+        Check.equal(0, queue[0].getPendingCount(), "pending requests after the drain");
+
+        queue[0].add(1.0);
+        Check.equal(1, executor.tasks.size(), "new drain task after the drain");
+        executor.runNext();
+        Check.equal("1.0,0.0", mover.moves.get(2), "single-axis request");
+    }
+
+    private static void dropsCancellingRequests() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingMover mover = new RecordingMover();
+        AxisCommandQueue queue = new AxisCommandQueue(executor, mover);
+
+        queue.add(2.5);
+        queue.add(-2.5);
+        executor.runNext();
+        Check.equal(0, mover.moves.size(), "no move for cancelling requests");
+    }
+
+    private static void clearDropsPendingRequests() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingMover mover = new RecordingMover();
+        AxisCommandQueue queue = new AxisCommandQueue(executor, mover);
+
+        queue.add(4.0);
+        queue.clear();
+        Check.equal(0, queue.getPendingCount(), "pending requests after clear");
+        executor.runNext();
+        Check.equal(0, mover.moves.size(), "no move after clear");
+
+        queue.add(1.0);
+        Check.equal(1, executor.tasks.size(), "drain task after clear");
+        executor.runNext();
+        Check.equal("1.0,0.0", mover.moves.get(0), "request after clear");
+    }
+
+    private static void recoversFromAFailedMove() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingMover mover = new RecordingMover();
+        AxisCommandQueue queue = new AxisCommandQueue(executor, mover);
+
+        mover.fail = true;
+        queue.add(1.0);
+        try {
+            executor.runNext();
+            Check.that(false, "move failure propagated");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        queue.add(2.0);
+        Check.equal(1, executor.tasks.size(), "drain task after a failed move");
+        executor.runNext();
+        Check.equal(2, mover.moves.size(), "move count");
+        Check.equal("2.0,0.0", mover.moves.get(1), "request after a failed move");
+    }
+
+    private static void recoversFromARejectedDrain() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingMover mover = new RecordingMover();
+        AxisCommandQueue queue = new AxisCommandQueue(executor, mover);
+
+        executor.reject = true;
+        try {
+            queue.add(1.0);
+            Check.that(false, "rejection propagated");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        Check.equal(1, queue.getPendingCount(), "rejected request kept");
+
+        executor.reject = false;
+        queue.add(2.0);
+        Check.equal(1, executor.tasks.size(), "drain task after a rejection");
+        executor.runNext();
+        Check.equal(1, mover.moves.size(), "move count");
+        Check.equal("3.0,0.0", mover.moves.get(0), "rejected request merged");
+    }
+}
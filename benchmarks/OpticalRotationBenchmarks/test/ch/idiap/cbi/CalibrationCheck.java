@@ -0,0 +1,152 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+/**
+ * CalibrationEngine fits on synthetic points of known centre, radius and phase,
+ * and the CalibrationPoints storage they are read from.
+ */
+final class CalibrationCheck implements Runnable {
+
+    private static final int POINTS = 100;
+    // Several standard deviations of the centre estimate at this noise level
+    private static final double CENTRE_TOLERANCE = 0.5;
+
+    @Override
+    public void run() {
+        algebraicFitIsExactOnACircle();
+        solversFindTheKnownCentre();
+        refineMatchesCalibrate();
+        degeneratePointsFallBack();
+        pointsGrowAndCopy();
+    }
+
+    private static double[][] exactCircle(int count, int direction) {
+        double[][] points = new double[3][count];
+        for (int i = 0; i < count; i++) {
+            // Uneven spread over less than a turn
+            double angle = 1.5 * Math.PI * i * i / (count * count);
+            double theta = SyntheticPoints.THETA0 + direction * angle;
+            points[0][i] = angle;
+            points[1][i] = SyntheticPoints.CENTRE_Z + SyntheticPoints.RADIUS * Math.cos(theta);
+            points[2][i] = SyntheticPoints.CENTRE_X + SyntheticPoints.RADIUS * Math.sin(theta);
+        }
+        return points;
+    }
+
+    private static void algebraicFitIsExactOnACircle() {
+        for (int direction = -1; direction <= 1; direction += 2) {
+            double[][] points = exactCircle(12, direction);
+            double[] fit = CalibrationEngine.fitAlgebraic(points[0], points[1], points[2], direction);
+            Check.that(fit != null, "algebraic fit defined");
+            Check.near(SyntheticPoints.CENTRE_Z, fit[0], 1e-8, "centre Z, direction " + direction);
+            Check.near(SyntheticPoints.CENTRE_X, fit[1], 1e-8, "centre X, direction " + direction);
+            Check.near(SyntheticPoints.RADIUS, fit[2], 1e-8, "radius, direction " + direction);
+            Check.near(SyntheticPoints.THETA0, fit[3], 1e-10, "theta0, direction " + direction);
+        }
+    }
+
+    private static void solversFindTheKnownCentre() {
+        for (int direction = -1; direction <= 1; direction += 2) {
+            double[][] points = SyntheticPoints.generate(POINTS, direction, 42);
+            for (CalibrationEngine.Solver solver : CalibrationEngine.Solver.values()) {
+                CalibrationResult result = new CalibrationEngine(solver).calibrate(points[0], points[1], points[2],
+                        direction, null);
+                String what = solver + ", direction " + direction;
+                Check.equal(solver, result.getSolver(), "solver of the result, " + what);
+                Check.equal(direction, result.getRotationDirection(), "direction of the result, " + what);
+                Check.near(SyntheticPoints.CENTRE_Z, result.getCentreZ(), CENTRE_TOLERANCE, "centre Z, " + what);
+                Check.near(SyntheticPoints.CENTRE_X, result.getCentreX(), CENTRE_TOLERANCE, "centre X, " + what);
+                Check.near(SyntheticPoints.RADIUS, result.getRadius(), CENTRE_TOLERANCE, "radius, " + what);
+                Check.near(SyntheticPoints.THETA0, result.getTheta0(), 1e-2, "theta0, " + what);
+                Check.equal(2 * POINTS, result.getResiduals().length, "residual count, " + what);
+                Check.that(result.getCovariance() != null, "covariance estimated, " + what);
+            }
+        }
+    }
+
+    private static void refineMatchesCalibrate() {
+        double[][] points = SyntheticPoints.generate(POINTS, 1, 7);
+        CalibrationEngine engine = new CalibrationEngine(CalibrationEngine.Solver.LEVENBERG_MARQUARDT);
+
+        // Refine a fit of the first half with all the points
+        int half = POINTS / 2;
+        double[][] first = new double[3][half];
+        for (int k = 0; k < 3; k++) {
+            System.arraycopy(points[k], 0, first[k], 0, half);
+        }
+        CalibrationResult previous = engine.calibrate(first[0], first[1], first[2], 1, null);
+        CalibrationResult refined = engine.refine(points[0], points[1], points[2], 1, previous);
+        CalibrationResult full = engine.calibrate(points[0], points[1], points[2], 1, null);
+
+        double[] expected = full.getParameters();
+        double[] actual = refined.getParameters();
+        for (int k = 0; k < expected.length; k++) {
+            Check.near(expected[k], actual[k], 1e-6 * Math.max(1.0, Math.abs(expected[k])), "parameter " + k);
+        }
+    }
+
+    private static void degeneratePointsFallBack() {
+        double[][] points = exactCircle(2, 1);
+        Check.that(CalibrationEngine.fitAlgebraic(points[0], points[1], points[2], 1) == null,
+                "no algebraic fit of two points");
+        CalibrationResult result = new CalibrationEngine(CalibrationEngine.Solver.ALGEBRAIC).calibrate(points[0],
+                points[1], points[2], 1, null);
+        Check.equal(CalibrationEngine.Solver.SIMPLEX, result.getSolver(), "fallback solver of two points");
+
+        double[] line = new double[] { 0.0, 1.0, 2.0, 3.0 };
+        Check.that(CalibrationEngine.fitAlgebraic(line, line, line, 1) == null, "no algebraic fit of a line");
+
+        try {
+            new CalibrationEngine().calibrate(new double[1], new double[1], new double[1], 1, null);
+            Check.that(false, "one point rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void pointsGrowAndCopy() {
+        double[][] source = SyntheticPoints.generate(POINTS, 1, 3);
+        CalibrationPoints points = new CalibrationPoints(1);
+        for (int i = 0; i < POINTS; i++) {
+            points.add(source[0][i], source[1][i], source[2][i], source[3][i]);
+        }
+        Check.equal(POINTS, points.size(), "point count");
+
+        double[][] arrays = points.toArrays();
+        for (int k = 0; k < 4; k++) {
+            Check.equal(POINTS, arrays[k].length, "array length " + k);
+            for (int i = 0; i < POINTS; i++) {
+                Check.identical(source[k][i], arrays[k][i], "coordinate " + k + " of point " + i);
+            }
+        }
+        Check.identical(source[1][POINTS - 1], points.getZ(POINTS - 1), "last Z");
+
+        points.clear();
+        Check.equal(0, points.size(), "point count after clear");
+        try {
+            points.getZ(0);
+            Check.that(false, "cleared point rejected");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+}
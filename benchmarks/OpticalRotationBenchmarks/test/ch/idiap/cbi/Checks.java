@@ -0,0 +1,53 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+/**
+ * Runs the deterministic checks and exits with a non-zero status if any fails.
+ */
+public final class Checks {
+
+    private Checks() {
+    }
+
+    public static void main(String[] args) {
+        Runnable[] checks = new Runnable[] { new CompensationCheck(), new CalibrationCheck(), new TiltCheck(),
+                new AxisQueueCheck(), new LaneCheck(), new CompensationTableCheck() };
+
+        int failed = 0;
+        for (Runnable check : checks) {
+            String name = check.getClass().getSimpleName();
+            try {
+                check.run();
+                System.out.println("PASS " + name);
+            } catch (Exception | AssertionError e) {
+                failed++;
+                System.out.println("FAIL " + name + ": " + e);
+                e.printStackTrace(System.out);
+            }
+        }
+
+        System.out.println((checks.length - failed) + "/" + checks.length + " checks passed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
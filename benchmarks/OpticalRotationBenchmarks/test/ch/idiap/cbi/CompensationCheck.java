@@ -0,0 +1,180 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.Random;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+
+/**
+ * RotationCompensation against the matrix implementation it replaced, and the
+ * 3D compensation against the 2D one and the geometry of the tilted axis.
+ */
+final class CompensationCheck implements Runnable {
+
+    private static final double CENTRE_Z = SyntheticPoints.CENTRE_Z;
+    private static final double CENTRE_X = SyntheticPoints.CENTRE_X;
+    private static final double CENTRE_Y = 500.0;
+
+    @Override
+    public void run() {
+        matchesMatrixImplementation();
+        untiltedMatches2D();
+        tiltedAxisIsFixed();
+        tiltedRotationIsRigid();
+    }
+
+    /**
+     * The former OpticalRotation.computeRotationCompensation
+     */
+    private static double[] matrixCompensation(double angleDeg, double[] origin, boolean relative, int direction) {
+        double radAngle = Math.toRadians(angleDeg);
+        radAngle *= direction;
+        Array2DRowRealMatrix mechanicalCentre = new Array2DRowRealMatrix(new double[] { CENTRE_Z, CENTRE_X });
+        Array2DRowRealMatrix rotMat = new Array2DRowRealMatrix(new double[][] {
+                { Math.cos(radAngle), -Math.sin(radAngle) }, { Math.sin(radAngle), Math.cos(radAngle) } }, false);
+
+        Array2DRowRealMatrix opticalCentre = new Array2DRowRealMatrix(origin);
+
+        Array2DRowRealMatrix target = opticalCentre.subtract(mechanicalCentre);
+        target = rotMat.multiply(target);
+        target = target.add(mechanicalCentre);
+
+        if (relative) {
+            target = target.subtract(opticalCentre);
+        }
+        return new double[] { target.getEntry(0, 0), target.getEntry(1, 0) };
+    }
+
+    private static void matchesMatrixImplementation() {
+        Random random = new Random(1);
+        double[] out = new double[2];
+        for (int direction = -1; direction <= 1; direction += 2) {
+            RotationCompensation compensation = new RotationCompensation(CENTRE_Z, CENTRE_X, direction);
+            for (int i = 0; i < 2000; i++) {
+                double angle = i < 1000 ? i * 0.75 - 375.0 : 1440.0 * (random.nextDouble() - 0.5);
+                double[] origin = new double[] { CENTRE_Z + 1000.0 * random.nextGaussian(),
+                        CENTRE_X + 1000.0 * random.nextGaussian() };
+                for (boolean relative : new boolean[] { false, true }) {
+                    double[] expected = matrixCompensation(angle, origin, relative, direction);
+                    compensation.compute(angle, origin, relative, out);
+                    String what = "angle " + angle + ", direction " + direction + ", relative " + relative;
+                    Check.identical(expected[0], out[0], "Z at " + what);
+                    Check.identical(expected[1], out[1], "X at " + what);
+                }
+            }
+        }
+    }
+
+    private static void untiltedMatches2D() {
+        Random random = new Random(2);
+        double[] out = new double[2];
+        double[] out3D = new double[3];
+        for (int direction = -1; direction <= 1; direction += 2) {
+            RotationCompensation compensation = new RotationCompensation(CENTRE_Z, CENTRE_X, CENTRE_Y, 0.0, 0.0,
+                    direction);
+            for (int i = 0; i < 1000; i++) {
+                double angle = 720.0 * (random.nextDouble() - 0.5);
+                double[] origin = new double[] { CENTRE_Z + 1000.0 * random.nextGaussian(),
+                        CENTRE_X + 1000.0 * random.nextGaussian(), CENTRE_Y + 100.0 * random.nextGaussian() };
+                for (boolean relative : new boolean[] { false, true }) {
+                    compensation.compute(angle, origin, relative, out);
+                    compensation.compute3D(angle, origin, relative, out3D);
+                    Check.near(out[0], out3D[0], 1e-9, "Z at angle " + angle);
+                    Check.near(out[1], out3D[1], 1e-9, "X at angle " + angle);
+                    Check.near(relative ? 0.0 : origin[2], out3D[2], 1e-9, "Y at angle " + angle);
+                }
+            }
+        }
+    }
+
+    private static double[] axis(double tiltZ, double tiltX) {
+        double z = Math.tan(Math.toRadians(tiltZ));
+        double x = Math.tan(Math.toRadians(tiltX));
+        double norm = Math.sqrt(z * z + x * x + 1.0);
+        return new double[] { z / norm, x / norm, 1.0 / norm };
+    }
+
+    private static void tiltedAxisIsFixed() {
+        double tiltZ = 3.0;
+        double tiltX = -1.5;
+        double[] axis = axis(tiltZ, tiltX);
+        RotationCompensation compensation = new RotationCompensation(CENTRE_Z, CENTRE_X, CENTRE_Y, tiltZ, tiltX, 1);
+
+        double[] out = new double[3];
+        for (double t = -500.0; t <= 500.0; t += 125.0) {
+            double[] point = new double[] { CENTRE_Z + t * axis[0], CENTRE_X + t * axis[1], CENTRE_Y + t * axis[2] };
+            for (double angle = -180.0; angle <= 180.0; angle += 22.5) {
+                compensation.compute3D(angle, point, true, out);
+                Check.near(0.0, out[0], 1e-9, "Z shift of an axis point at angle " + angle);
+                Check.near(0.0, out[1], 1e-9, "X shift of an axis point at angle " + angle);
+                Check.near(0.0, out[2], 1e-9, "Y shift of an axis point at angle " + angle);
+            }
+        }
+    }
+
+    private static void tiltedRotationIsRigid() {
+        double tiltZ = -2.0;
+        double tiltX = 4.0;
+        double[] axis = axis(tiltZ, tiltX);
+        Random random = new Random(3);
+        double[] first = new double[3];
+        double[] second = new double[3];
+        double[] combined = new double[3];
+        for (int direction = -1; direction <= 1; direction += 2) {
+            RotationCompensation compensation = new RotationCompensation(CENTRE_Z, CENTRE_X, CENTRE_Y, tiltZ, tiltX,
+                    direction);
+            for (int i = 0; i < 200; i++) {
+                double[] origin = new double[] { CENTRE_Z + 500.0 * random.nextGaussian(),
+                        CENTRE_X + 500.0 * random.nextGaussian(), CENTRE_Y + 100.0 * random.nextGaussian() };
+                double a = 360.0 * random.nextDouble();
+                double b = 360.0 * random.nextDouble();
+
+                compensation.compute3D(a, origin, false, first);
+                compensation.compute3D(b, first, false, second);
+                compensation.compute3D(a + b, origin, false, combined);
+                for (int k = 0; k < 3; k++) {
+                    Check.near(combined[k], second[k], 1e-6, "composed rotation, coordinate " + k);
+                }
+
+                // Distance to the axis and height along it are preserved
+                Check.near(axisDistance(origin, axis), axisDistance(first, axis), 1e-6, "distance to the axis");
+                Check.near(axisHeight(origin, axis), axisHeight(first, axis), 1e-6, "height along the axis");
+
+                compensation.compute3D(360.0, origin, true, first);
+                for (int k = 0; k < 3; k++) {
+                    Check.near(0.0, first[k], 1e-6, "full turn, coordinate " + k);
+                }
+            }
+        }
+    }
+
+    private static double axisHeight(double[] point, double[] axis) {
+        return (point[0] - CENTRE_Z) * axis[0] + (point[1] - CENTRE_X) * axis[1] + (point[2] - CENTRE_Y) * axis[2];
+    }
+
+    private static double axisDistance(double[] point, double[] axis) {
+        double height = axisHeight(point, axis);
+        double z = point[0] - CENTRE_Z - height * axis[0];
+        double x = point[1] - CENTRE_X - height * axis[1];
+        double y = point[2] - CENTRE_Y - height * axis[2];
+        return Math.sqrt(z * z + x * x + y * y);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import org.micromanager.Studio;
+
+/**
+ * CompensationTable lookups against the direct RotationCompensation
+ * computation, alone and behind OpticalRotation.
+ */
+final class CompensationTableCheck implements Runnable {
+
+    private static final double TOLERANCE = 1e-8;
+
+    @Override
+    public void run() {
+        rejectsStepsNotDividingATurn();
+        indexWrapsAround();
+        lookupsMatchDirectComputation();
+        rotationUsesTableForMultiples();
+    }
+
+    private static void rejectsStepsNotDividingATurn() {
+        for (double step : new double[] { 0.0, 7.0, 0.7, 400.0 }) {
+            try {
+                new CompensationTable(step);
+                Check.that(false, "step " + step + " rejected");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        Check.equal(360, new CompensationTable(1.0).size(), "size for 1 degree");
+        Check.equal(24, new CompensationTable(-15.0).size(), "size for -15 degrees");
+        Check.identical(15.0, new CompensationTable(-15.0).getStep(), "step for -15 degrees");
+    }
+
+    private static void indexWrapsAround() {
+        CompensationTable table = new CompensationTable(15.0);
+        Check.equal(0, table.indexOf(0.0), "index of 0");
+        Check.equal(3, table.indexOf(45.0), "index of 45");
+        Check.equal(0, table.indexOf(360.0), "index of 360");
+        Check.equal(23, table.indexOf(-15.0), "index of -15");
+        Check.equal(3, table.indexOf(3645.0), "index of 3645");
+        Check.equal(21, table.indexOf(-3645.0), "index of -3645");
+        Check.equal(3, table.indexOf(45.0 + 1e-12), "index of 45 with rounding error");
+        Check.equal(-1, table.indexOf(7.5), "index of 7.5");
+        Check.equal(-1, table.indexOf(45.001), "index of 45.001");
+    }
+
+    private static void lookupsMatchDirectComputation() {
+        CompensationTable table = new CompensationTable(0.5);
+        double[] origin = new double[] { 1500.0, 2300.0, 480.0 };
+        double[] expected = new double[3];
+        double[] actual = new double[3];
+        for (int direction = -1; direction <= 1; direction += 2) {
+            RotationCompensation compensation = new RotationCompensation(SyntheticPoints.CENTRE_Z,
+                    SyntheticPoints.CENTRE_X, 500.0, 1.5, -2.0, direction);
+            for (double angle = -1080.0; angle <= 1080.0; angle += 2.5) {
+                int index = table.indexOf(angle);
+                Check.that(index >= 0, "index of " + angle);
+                for (boolean relative : new boolean[] { false, true }) {
+                    String what = "angle " + angle + ", direction " + direction + ", relative " + relative;
+
+                    compensation.compute(angle, origin, relative, expected);
+                    table.compute(compensation, index, origin, relative, actual);
+                    Check.near(expected[0], actual[0], TOLERANCE, "Z at " + what);
+                    Check.near(expected[1], actual[1], TOLERANCE, "X at " + what);
+
+                    compensation.compute3D(angle, origin, relative, expected);
+                    table.compute3D(compensation, index, origin, relative, actual);
+                    for (int k = 0; k < 3; k++) {
+                        Check.near(expected[k], actual[k], TOLERANCE, "3D coordinate " + k + " at " + what);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void rotationUsesTableForMultiples() {
+        Studio studio = MockStudio.create(new MockCore());
+        try {
+            OpticalRotation direct = new OpticalRotation(studio, MockCore.Z_STAGE, MockCore.R_STAGE);
+            direct.registerCalibration(SyntheticPoints.CENTRE_Z, SyntheticPoints.CENTRE_X, -1, true);
+            // Same Studio, hence same calibration
+            OpticalRotation tabled = new OpticalRotation(studio, MockCore.Z_STAGE, MockCore.R_STAGE);
+            tabled.setCompensationStep(1.0);
+
+            double[] origin = new double[] { 1500.0, 2300.0 };
+            double[] expected = new double[2];
+            double[] actual = new double[2];
+            // Multiples of the step use the table, the others the direct path
+            for (double angle : new double[] { 0.0, 1.0, 37.0, -90.0, 359.0, 721.0, 0.5, 12.25 }) {
+                direct.computeRotationCompensation(angle, origin, false, expected);
+                tabled.computeRotationCompensation(angle, origin, false, actual);
+                Check.near(expected[0], actual[0], TOLERANCE, "Z at angle " + angle);
+                Check.near(expected[1], actual[1], TOLERANCE, "X at angle " + angle);
+            }
+        } finally {
+            RotationContext.dispose(studio);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * DeviceLaneScheduler ordering and exclusion, with the tasks run by the check
+ * so that their interleaving is fixed.
+ */
+final class LaneCheck implements Runnable {
+
+    private static final String X = "X";
+    private static final String Y = "Y";
+    private static final String Z = "Z";
+
+    private final List<String> log_ = new ArrayList<>();
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log_.add(name);
+            }
+        };
+    }
+
+    @Override
+    public void run() {
+        sharedDevicesRunInOrder();
+        duplicateDevicesDoNotBlock();
+        failedTaskReleasesLanes();
+        rejectedTaskReleasesLanes();
+        asyncTaskHoldsLanesUntilComplete();
+        failedAsyncTaskReleasesLanes();
+    }
+
+    private void sharedDevicesRunInOrder() {
+        log_.clear();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceLaneScheduler scheduler = new DeviceLaneScheduler(executor);
+
+        scheduler.submit(task("a"), X);
+        scheduler.submit(task("b"), X, Z);
+        scheduler.submit(task("c"), Z);
+        scheduler.submit(task("d"), Y);
+        scheduler.lanes(Z, X).execute(task("e"));
+
+        // b waits for a on X, c and e wait for b
+        Check.equal(2, executor.tasks.size(), "tasks started with free lanes");
+        Check.equal(3, scheduler.getQueueLength(X), "X lane");
+        Check.equal(3, scheduler.getQueueLength(Z), "Z lane");
+        Check.equal(1, scheduler.getQueueLength(Y), "Y lane");
+
+        executor.runNext();
+        executor.runNext();
+        Check.equal("[a, d]", log_.toString(), "first tasks");
+        Check.equal(1, executor.tasks.size(), "tasks started after a");
+        Check.equal(0, scheduler.getQueueLength(Y), "Y lane after d");
+
+        executor.runNext();
+        Check.equal(1, executor.tasks.size(), "tasks started after b");
+        executor.runNext();
+        Check.equal(1, executor.tasks.size(), "tasks started after c");
+        executor.runNext();
+        Check.equal("[a, d, b, c, e]", log_.toString(), "execution order");
+        Check.equal(0, executor.tasks.size(), "tasks left");
+        Check.equal(0, scheduler.getQueueLength(X), "X lane at the end");
+        Check.equal(0, scheduler.getQueueLength(Z), "Z lane at the end");
+    }
+
+    private void duplicateDevicesDoNotBlock() {
+        log_.clear();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceLaneScheduler scheduler = new DeviceLaneScheduler(executor);
+
+        scheduler.submit(task("a"), X, X);
+        Check.equal(1, executor.tasks.size(), "task with a duplicate device started");
+        Check.equal(1, scheduler.getQueueLength(X), "X lane");
+        executor.runNext();
+        Check.equal(0, scheduler.getQueueLength(X), "X lane after the task");
+    }
+
+    private void failedTaskReleasesLanes() {
+        log_.clear();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceLaneScheduler scheduler = new DeviceLaneScheduler(executor);
+
+        scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("task failed");
+            }
+        }, X, Y);
+        scheduler.submit(task("b"), Y);
+        try {
+            executor.runNext();
+            Check.that(false, "task failure propagated");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Check.equal(0, scheduler.getQueueLength(X), "X lane after the failure");
+        Check.equal(1, executor.tasks.size(), "task started after the failure");
+        executor.runNext();
+        Check.equal("[b]", log_.toString(), "execution order");
+    }
+
+    private void rejectedTaskReleasesLanes() {
+        log_.clear();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceLaneScheduler scheduler = new DeviceLaneScheduler(executor);
+
+        executor.reject = true;
+        try {
+            scheduler.submit(task("a"), X);
+            Check.that(false, "rejection propagated");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        Check.equal(0, scheduler.getQueueLength(X), "X lane after a rejection");
+
+        // A task rejected when the one before it finishes is dropped
+        executor.reject = false;
+        scheduler.submit(task("b"), X);
+        scheduler.submit(task("c"), X, Y);
+        scheduler.submit(task("d"), Y);
+        executor.reject = true;
+        executor.runNext();
+        Check.equal(0, scheduler.getQueueLength(X), "X lane after a dropped task");
+        Check.equal(0, scheduler.getQueueLength(Y), "Y lane after a dropped task");
+
+        executor.reject = false;
+        scheduler.submit(task("e"), Y);
+        executor.runNext();
+        Check.equal("[b, e]", log_.toString(), "execution order");
+    }
+
+    private void asyncTaskHoldsLanesUntilComplete() {
+        log_.clear();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceLaneScheduler scheduler = new DeviceLaneScheduler(executor);
+
+        final CompletableFuture<Void> motion = new CompletableFuture<>();
+        CompletableFuture<Void> done = scheduler.submitAsync(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                log_.add("a");
+                return motion;
+            }
+        }, X);
+        scheduler.submit(task("b"), X);
+
+        executor.runNext();
+        Check.equal(0, executor.tasks.size(), "lane held by the running operation");
+        Check.that(!done.isDone(), "async task pending");
+
+        motion.complete(null);
+        Check.that(done.isDone() && !done.isCompletedExceptionally(), "async task completed");
+        Check.equal(1, executor.tasks.size(), "task started after the operation");
+        executor.runNext();
+        Check.equal("[a, b]", log_.toString(), "execution order");
+
+        executor.reject = true;
+        done = scheduler.submitAsync(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return motion;
+            }
+        }, X);
+        Check.that(done.isCompletedExceptionally(), "rejected async task failed");
+        Check.equal(0, scheduler.getQueueLength(X), "X lane after a rejected async task");
+    }
+
+    private void failedAsyncTaskReleasesLanes() {
+        log_.clear();
+        ManualExecutor executor = new ManualExecutor();
+        DeviceLaneScheduler scheduler = new DeviceLaneScheduler(executor);
+
+        CompletableFuture<Void> failedStart = scheduler.submitAsync(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                throw new IllegalStateException("start failed");
+            }
+        }, X);
+        final CompletableFuture<Void> motion = new CompletableFuture<>();
+        CompletableFuture<Void> failedMotion = scheduler.submitAsync(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return motion;
+            }
+        }, X);
+        scheduler.submit(task("c"), X);
+
+        executor.runNext();
+        Check.that(failedStart.isCompletedExceptionally(), "async task failed to start");
+        executor.runNext();
+        motion.completeExceptionally(new IllegalStateException("motion failed"));
+        Check.that(failedMotion.isCompletedExceptionally(), "async task failed during the motion");
+        executor.runNext();
+        Check.equal("[c]", log_.toString(), "execution order");
+        Check.equal(0, scheduler.getQueueLength(X), "X lane at the end");
+    }
+}
@@ -0,0 +1,48 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor holding the submitted tasks until the check runs them, so that the
+ * interleaving of the tasks is fixed. It can also reject them.
+ */
+final class ManualExecutor implements Executor {
+
+    final List<Runnable> tasks = new ArrayList<>();
+    boolean reject = false;
+
+    @Override
+    public void execute(Runnable command) {
+        if (reject) {
+            throw new RejectedExecutionException("rejected");
+        }
+        tasks.add(command);
+    }
+
+    void runNext() {
+        tasks.remove(0).run();
+    }
+}
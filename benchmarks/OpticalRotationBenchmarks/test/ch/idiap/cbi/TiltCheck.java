@@ -0,0 +1,122 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.Random;
+
+/**
+ * TiltEstimator on the trajectory of a point around an axis of known tilt, and
+ * its streaming moments against a two-pass computation.
+ */
+final class TiltCheck implements Runnable {
+
+    @Override
+    public void run() {
+        recoversKnownTilt();
+        momentsMatchTwoPass();
+        clearAndTooFewPoints();
+    }
+
+    private static void recoversKnownTilt() {
+        double[][] tilts = new double[][] { { 0.0, 0.0 }, { 2.5, 0.0 }, { 0.0, -3.0 }, { -1.2, 4.7 } };
+        double[] origin = new double[] { SyntheticPoints.CENTRE_Z + SyntheticPoints.RADIUS,
+                SyntheticPoints.CENTRE_X, 500.0 };
+        double[] point = new double[3];
+        for (double[] tilt : tilts) {
+            RotationCompensation compensation = new RotationCompensation(SyntheticPoints.CENTRE_Z,
+                    SyntheticPoints.CENTRE_X, 500.0, tilt[0], tilt[1], 1);
+            TiltEstimator estimator = new TiltEstimator();
+            double[][] points = new double[3][36];
+            for (int i = 0; i < 36; i++) {
+                compensation.compute3D(i * 10.0, origin, false, point);
+                estimator.add(point[0], point[1], point[2]);
+                for (int k = 0; k < 3; k++) {
+                    points[k][i] = point[k];
+                }
+            }
+
+            String what = "tilt (" + tilt[0] + ", " + tilt[1] + ")";
+            double[] estimate = estimator.getTilt();
+            Check.near(tilt[0], estimate[0], 1e-6, "ZY " + what);
+            Check.near(tilt[1], estimate[1], 1e-6, "XY " + what);
+
+            double[] computed = new CalibrationEngine().computeTilt(points[0], points[1], points[2]);
+            Check.identical(estimate[0], computed[0], "CalibrationEngine ZY " + what);
+            Check.identical(estimate[1], computed[1], "CalibrationEngine XY " + what);
+        }
+    }
+
+    private static void momentsMatchTwoPass() {
+        // Large offsets, where the naive sum of squares loses the covariance
+        double[][] points = SyntheticPoints.generate(1000, 1, 11);
+        Random random = new Random(5);
+        int n = points[1].length;
+        TiltEstimator estimator = new TiltEstimator();
+        double[][] values = new double[3][n];
+        for (int i = 0; i < n; i++) {
+            values[0][i] = 1e7 + points[1][i];
+            values[1][i] = -1e7 + points[2][i];
+            values[2][i] = 1e7 + points[3][i] + random.nextGaussian();
+            estimator.add(values[0][i], values[1][i], values[2][i]);
+        }
+        Check.equal((long) n, estimator.getCount(), "point count");
+
+        double[] mean = new double[3];
+        for (int k = 0; k < 3; k++) {
+            for (int i = 0; i < n; i++) {
+                mean[k] += values[k][i];
+            }
+            mean[k] /= n;
+        }
+        double[] actualMean = estimator.getMean();
+        double[][] covariance = estimator.getCovariance();
+        for (int j = 0; j < 3; j++) {
+            Check.near(mean[j], actualMean[j], 1e-7, "mean " + j);
+            for (int k = 0; k < 3; k++) {
+                double expected = 0.0;
+                for (int i = 0; i < n; i++) {
+                    expected += (values[j][i] - mean[j]) * (values[k][i] - mean[k]);
+                }
+                expected /= n;
+                Check.near(expected, covariance[j][k], 1e-6 * Math.max(1.0, Math.abs(expected)),
+                        "covariance " + j + ", " + k);
+            }
+        }
+    }
+
+    private static void clearAndTooFewPoints() {
+        TiltEstimator estimator = new TiltEstimator();
+        estimator.add(1.0, 2.0, 3.0);
+        estimator.add(4.0, 5.0, 6.0);
+        estimator.clear();
+        Check.equal(0L, estimator.getCount(), "point count after clear");
+        Check.identical(0.0, estimator.getMean()[0], "mean after clear");
+        Check.identical(0.0, estimator.getCovariance()[0][0], "covariance after clear");
+
+        estimator.add(1.0, 2.0, 3.0);
+        try {
+            estimator.getTilt();
+            Check.that(false, "tilt of one point rejected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.MaxIter;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+
+/**
+ * Rotation axis calibration from recorded point positions, independent of any
+ * GUI or hardware. The engine keeps no state between calls and can be shared
+ * between threads.
+ *
+ * Each point is the ZXY stage position at which the same sample feature was
+ * centred, tagged with the rotation motor angle in radians.
+ *
+ * The circle is first fitted in closed form (Kåsa algebraic fit), which is used
+ * either directly or as the starting point of the iterative solvers.
+ */
+public class CalibrationEngine {
+
+    /**
+     * Circle fitting method
+     */
+    public enum Solver {
+        /**
+         * Closed-form algebraic fit only, no iterative refinement. The fit is
+         * undefined for fewer than three or degenerate points: the simplex is
+         * used instead, and reported as the solver of the result.
+         */
+        ALGEBRAIC("Fast (algebraic)"),
+        /**
+         * Nelder-Mead minimisation of the mean point distance
+         */
+        SIMPLEX("Simplex"),
+        /**
+         * Levenberg-Marquardt least-squares fit with the analytic Jacobian
+         */
+        LEVENBERG_MARQUARDT("Levenberg-Marquardt");
+
+        private final String label_;
+
+        Solver(String label) {
+            label_ = label;
+        }
+
+        @Override
+        public String toString() {
+            return label_;
+        }
+    }
+
+    public static final double OPTIM_REL_THRESH = 1e-12;
+    public static final double OPTIM_REL_THRESH_PRECISE = 1e-15;
+    public static final double OPTIM_ABS_THRESH = 0;
+    public static final int OPTIM_MAX_ITER = 500000;
+    public static final double Z_ERROR_WEIGHT = 0.7;
+    public static final int LSQ_MAX_EVAL = 10000;
+    public static final double COVARIANCE_THRESHOLD = 1e-14;
+
+    private final Solver solver_;
+
+    public CalibrationEngine() {
+        this(Solver.SIMPLEX);
+    }
+
+    public CalibrationEngine(Solver solver) {
+        solver_ = solver;
+    }
+
+    public Solver getSolver() {
+        return solver_;
+    }
+
+    /**
+     * Fit the circle described by the recorded points around the rotation axis
+     *
+     * @param angles    rotation angle of each point, in radians
+     * @param z         Z coordinate of each point
+     * @param x         X coordinate of each point
+     * @param direction rotation direction
+     * @param initPoint initial ZX centre of the iterative solvers, or null to
+     *                  start from the algebraic fit; the algebraic solver only
+     *                  uses it when the algebraic fit is undefined
+     * @return
+     */
+    public CalibrationResult calibrate(double[] angles, double[] z, double[] x, int direction, double[] initPoint) {
+        checkPoints(angles, z, x);
+
+        double[] guess = null;
+        if (initPoint == null || solver_ == Solver.ALGEBRAIC) {
+            guess = fitAlgebraic(angles, z, x, direction);
+        }
+
+        if (guess != null && solver_ == Solver.ALGEBRAIC) {
+            return newResult(angles, z, x, direction, guess, Solver.ALGEBRAIC, 1, 0);
+        }
+
+        if (guess == null) {
+            // Too few or degenerate points for the algebraic fit
+            if (initPoint == null) {
+                initPoint = new double[] { mean(z), mean(x) };
+            }
+            guess = new double[] { initPoint[0], initPoint[1], meanDistance(z, x, initPoint[0], initPoint[1]),
+                    meanPhase(angles, z, x, direction, initPoint[0], initPoint[1]) };
+        }
+
+        if (solver_ == Solver.LEVENBERG_MARQUARDT) {
+            return fitLeastSquares(angles, z, x, direction, guess);
+        }
+        return fitSimplex(angles, z, x, direction, guess);
+    }
+
+    /**
+     * Refine a previous calibration with an updated point set, starting the
+     * iterative solver from the previous solution instead of from scratch. Falls
+     * back to {@link #calibrate} when there is no usable previous result or the
+     * solver is not iterative.
+     *
+     * @param angles    rotation angle of each point, in radians
+     * @param z         Z coordinate of each point
+     * @param x         X coordinate of each point
+     * @param direction rotation direction
+     * @param previous  previous result, can be null
+     * @return
+     */
+    public CalibrationResult refine(double[] angles, double[] z, double[] x, int direction,
+            CalibrationResult previous) {
+        if (previous == null || previous.getRotationDirection() != direction || solver_ == Solver.ALGEBRAIC) {
+            return calibrate(angles, z, x, direction, null);
+        }
+        checkPoints(angles, z, x);
+
+        double[] guess = previous.getParameters();
+        if (solver_ == Solver.LEVENBERG_MARQUARDT) {
+            return fitLeastSquares(angles, z, x, direction, guess);
+        }
+        return fitSimplex(angles, z, x, direction, guess);
+    }
+
+    private CalibrationResult fitSimplex(double[] angles, double[] z, double[] x, int direction, double[] guess) {
+        CircleFittingFunction function = new CircleFittingFunction(angles, z, x, direction, Z_ERROR_WEIGHT);
+
+        SimplexOptimizer optim = new SimplexOptimizer(OPTIM_REL_THRESH, OPTIM_ABS_THRESH);
+        PointValuePair result = optim.optimize(new NelderMeadSimplex(4), GoalType.MINIMIZE, new InitialGuess(guess),
+                new ObjectiveFunction(function), MaxEval.unlimited(), new MaxIter(OPTIM_MAX_ITER));
+        int evaluations = optim.getEvaluations();
+        int iterations = optim.getIterations();
+
+        optim = new SimplexOptimizer(OPTIM_REL_THRESH_PRECISE, OPTIM_ABS_THRESH);
+        result = optim.optimize(new NelderMeadSimplex(4), GoalType.MINIMIZE, new InitialGuess(result.getPoint()),
+                new ObjectiveFunction(function), MaxEval.unlimited(), new MaxIter(OPTIM_MAX_ITER));
+        evaluations += optim.getEvaluations();
+        iterations += optim.getIterations();
+
+        return newResult(angles, z, x, direction, result.getPoint(), Solver.SIMPLEX, evaluations, iterations);
+    }
+
+    private CalibrationResult fitLeastSquares(double[] angles, double[] z, double[] x, int direction,
+            double[] guess) {
+        LeastSquaresProblem problem = newProblem(angles, z, x, direction, guess);
+        LeastSquaresOptimizer.Optimum optimum = new LevenbergMarquardtOptimizer().optimize(problem);
+
+        return newResult(angles, z, x, direction, optimum.getPoint().toArray(), Solver.LEVENBERG_MARQUARDT,
+                optimum.getEvaluations(), optimum.getIterations());
+    }
+
+    private static LeastSquaresProblem newProblem(double[] angles, double[] z, double[] x, int direction,
+            double[] start) {
+        return new LeastSquaresBuilder().model(new CircleFittingModel(angles, direction))
+                .target(CircleFittingModel.target(z, x)).start(start).maxEvaluations(LSQ_MAX_EVAL)
+                .maxIterations(LSQ_MAX_EVAL).lazyEvaluation(false).build();
+    }
+
+    /**
+     * Wrap fitted parameters into a result, with the least-squares residuals and
+     * parameter covariance evaluated at the solution
+     */
+    private static CalibrationResult newResult(double[] angles, double[] z, double[] x, int direction,
+            double[] parameters, Solver solver, int evaluations, int iterations) {
+        double cost = new CircleFittingFunction(angles, z, x, direction, Z_ERROR_WEIGHT).value(parameters);
+
+        LeastSquaresProblem.Evaluation evaluation = newProblem(angles, z, x, direction, parameters)
+                .evaluate(new ArrayRealVector(parameters));
+        double[] residuals = evaluation.getResiduals().toArray();
+
+        double[][] covariance = null;
+        int freedom = residuals.length - parameters.length;
+        if (freedom > 0) {
+            double rss = evaluation.getCost() * evaluation.getCost();
+            try {
+                covariance = evaluation.getCovariances(COVARIANCE_THRESHOLD).scalarMultiply(rss / freedom).getData();
+            } catch (SingularMatrixException e) {
+                // Parameters not identifiable from these points
+            }
+        }
+
+        return new CalibrationResult(parameters, direction, solver, cost, evaluations, iterations, residuals,
+                covariance);
+    }
+
+    /**
+     * Closed-form algebraic (Kåsa) circle fit of the ZX points. The phase theta0
+     * is the circular mean of the point phases corrected by their angle tags.
+     *
+     * @param angles    rotation angle of each point, in radians
+     * @param z         Z coordinate of each point
+     * @param x         X coordinate of each point
+     * @param direction rotation direction
+     * @return the (centreZ, centreX, radius, theta0) parameters, or null if the
+     *         points are too few or collinear
+     */
+    public static double[] fitAlgebraic(double[] angles, double[] z, double[] x, int direction) {
+        int n = z.length;
+        if (n < 3) {
+            return null;
+        }
+
+        double zMean = mean(z);
+        double xMean = mean(x);
+
+        double suu = 0.0;
+        double svv = 0.0;
+        double suv = 0.0;
+        double suuu = 0.0;
+        double svvv = 0.0;
+        double suvv = 0.0;
+        double svuu = 0.0;
+        for (int i = 0; i < n; i++) {
+            double u = z[i] - zMean;
+            double v = x[i] - xMean;
+            double uu = u * u;
+            double vv = v * v;
+            suu += uu;
+            svv += vv;
+            suv += u * v;
+            suuu += uu * u;
+            svvv += vv * v;
+            suvv += u * vv;
+            svuu += v * uu;
+        }
+
+        double det = suu * svv - suv * suv;
+        if (!(Math.abs(det) > 1e-12 * suu * svv)) {
+            return null;
+        }
+
+        double bu = 0.5 * (suuu + suvv);
+        double bv = 0.5 * (svvv + svuu);
+        double uc = (bu * svv - bv * suv) / det;
+        double vc = (bv * suu - bu * suv) / det;
+
+        double centreZ = zMean + uc;
+        double centreX = xMean + vc;
+        double radius = Math.sqrt(uc * uc + vc * vc + (suu + svv) / n);
+        double theta0 = meanPhase(angles, z, x, direction, centreZ, centreX);
+
+        return new double[] { centreZ, centreX, radius, theta0 };
+    }
+
+    private static double meanPhase(double[] angles, double[] z, double[] x, int direction, double centreZ,
+            double centreX) {
+        double sin = 0.0;
+        double cos = 0.0;
+        for (int i = 0; i < angles.length; i++) {
+            double phase = Math.atan2(x[i] - centreX, z[i] - centreZ) - angles[i] * direction;
+            sin += Math.sin(phase);
+            cos += Math.cos(phase);
+        }
+        return Math.atan2(sin, cos);
+    }
+
+    private static double meanDistance(double[] z, double[] x, double centreZ, double centreX) {
+        double meanDist = 0.0;
+        for (int i = 0; i < z.length; i++) {
+            meanDist += Math.sqrt(Math.pow(centreZ - z[i], 2) + Math.pow(centreX - x[i], 2));
+        }
+        return meanDist / z.length;
+    }
+
+    /**
+     * Estimate the tilt of the rotation axis from the principal axes of the
+     * recorded points
+     *
+     * @param z Z coordinate of each point
+     * @param x X coordinate of each point
+     * @param y Y coordinate of each point
+     * @return the ZY and XY tilt angles in degrees
+     */
+    public double[] computeTilt(double[] z, double[] x, double[] y) {
+        checkPoints(z, x, y);
+
+        TiltEstimator estimator = new TiltEstimator();
+        for (int i = 0; i < z.length; i++) {
+            estimator.add(z[i], x[i], y[i]);
+        }
+        return estimator.getTilt();
+    }
+
+    private static void checkPoints(double[] a, double[] b, double[] c) {
+        if (a.length != b.length || a.length != c.length) {
+            throw new IllegalArgumentException("Point coordinate arrays must have the same length");
+        }
+        if (a.length < 2) {
+            throw new IllegalArgumentException("At least two points are needed");
+        }
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0.0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+}
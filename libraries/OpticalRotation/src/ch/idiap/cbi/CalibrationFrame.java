@@ -23,9 +23,10 @@ package ch.idiap.cbi;
 import com.bulenkov.iconloader.IconLoader;
 import java.awt.Component;
 import java.awt.Font;
-import java.util.ArrayList;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.FileWriter;
@@ -33,31 +34,27 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.JFrame;
 import mmcorej.CMMCore;
 import net.miginfocom.swing.MigLayout;
-import org.apache.commons.math3.analysis.MultivariateFunction;
-import org.apache.commons.math3.linear.EigenDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
-import org.apache.commons.math3.optim.MaxIter;
-import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
-import org.apache.commons.math3.stat.descriptive.MultivariateSummaryStatistics;
 import org.apache.commons.math3.util.Precision;
 import org.micromanager.Studio;
 
@@ -68,33 +65,73 @@ public class CalibrationFrame extends JFrame {
     private JTextField manualCZ;
     private JTextField manualCX;
     private JLabel pointsLabel;
+    private JLabel liveTiltLabel;
+    private JLabel onlineLabel;
+    private JCheckBox onlineTick;
     private JButton calibrateButton;
     private JButton tiltButton;
     private JRadioButton rotationDirButton1;
     private JRadioButton rotationDirButton2;
     private JCheckBox debugTick;
-    private ArrayList<PointValuePair> points_;
+    private JCheckBox tiltCompensationTick;
+    private JComboBox<CalibrationEngine.Solver> solverSelect;
+    private CalibrationPoints points_;
+    private final TiltEstimator tiltEstimator_ = new TiltEstimator();
     private final Component parent_;
     private final Studio studio_;
     private final CMMCore core_;
     private final OpticalRotation rotationManager;
 
-    private static final double OPTIM_REL_THRESH = 1e-12;
-    private static final double OPTIM_REL_THRESH_PRECISE = 1e-15;
-    private static final double OPTIM_ABS_THRESH = 0;
-    private static final int OPTIM_MAX_ITER = 500000;
-    private static final double Z_ERROR_WEIGHT = 0.7;
+    // Online refinement: requests are coalesced, only the latest point set is
+    // refined once the previous refinement is over. The thread ends when idle,
+    // and the executor is shut down with the window.
+    private final ThreadPoolExecutor onlineExecutor_ = new ThreadPoolExecutor(1, 1, ONLINE_THREAD_KEEP_ALIVE_S,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Rotation calibration refinement");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicReference<OnlineRequest> onlineRequest_ = new AtomicReference<>();
+    private final AtomicInteger onlineGeneration_ = new AtomicInteger();
+    private volatile CalibrationResult onlineResult_;
+    // Only accessed from the refinement thread
+    private CalibrationResult workerResult_;
+    private int workerGeneration_ = -1;
+
+    private static final String SOLVER = "SOLVER";
+    private static final String ONLINE = "ONLINE";
+    private static final long ONLINE_THREAD_KEEP_ALIVE_S = 10;
 
     public CalibrationFrame(Component parent, Studio studio) {
         parent_ = parent;
         studio_ = studio;
         core_ = studio.getCMMCore();
         rotationManager = new OpticalRotation(studio);
+        onlineExecutor_.allowCoreThreadTimeOut(true);
         initComponents();
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // The queued refinement is stale once the window is hidden
+                resetOnline();
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        onlineExecutor_.shutdownNow();
+        super.dispose();
     }
 
     public void open() {
-        points_ = new ArrayList<>();
+        points_ = new CalibrationPoints();
+        tiltEstimator_.clear();
+        resetOnline();
         updateStoredPoints();
         updateCalibrationLabel();
         this.setVisible(true);
@@ -102,6 +139,8 @@ public class CalibrationFrame extends JFrame {
 
     private void clearPoints() {
         points_.clear();
+        tiltEstimator_.clear();
+        resetOnline();
         updateStoredPoints();
     }
 
@@ -111,9 +150,12 @@ public class CalibrationFrame extends JFrame {
         if (storedPoints_ > 1) {
             calibrateButton.setEnabled(true);
             tiltButton.setEnabled(true);
+            double[] tilt = tiltEstimator_.getTilt();
+            liveTiltLabel.setText(String.format("Tilt from points -- X: %.3fº -- Z: %.3fº", tilt[1], tilt[0]));
         } else {
             calibrateButton.setEnabled(false);
             tiltButton.setEnabled(false);
+            liveTiltLabel.setText("Tilt from points -- (need 2 points)");
         }
     }
 
@@ -125,24 +167,9 @@ public class CalibrationFrame extends JFrame {
     }
 
     private void compute_tilt(boolean success_frame) {
-        MultivariateSummaryStatistics stats = new MultivariateSummaryStatistics(3, false);
-        for (PointValuePair point : points_) {
-            stats.addValue(point.getPoint());
-        }
-
-        RealMatrix covar = stats.getCovariance();
-        EigenDecomposition eigen = new EigenDecomposition(covar);
-
-        RealVector axis = eigen.getEigenvector(2);
-
-        double dir_z = axis.getEntry(0);
-        double dir_x = axis.getEntry(1);
-        double dir_y = axis.getEntry(2);
-
-        double theta_xy = Math.toDegrees(Math.acos(dir_y / Math.sqrt(Math.pow(dir_y, 2) + Math.pow(dir_x, 2))));
-        double theta_zy = Math.toDegrees(Math.acos(dir_y / Math.sqrt(Math.pow(dir_y, 2) + Math.pow(dir_z, 2))));
+        double[] tilt = tiltEstimator_.getTilt();
 
-        rotationManager.registerTilt(theta_zy, theta_xy);
+        rotationManager.registerTilt(tilt[0], tilt[1]);
         updateCalibrationLabel();
 
         if (success_frame) {
@@ -151,50 +178,149 @@ public class CalibrationFrame extends JFrame {
     }
 
     private void calibrate() {
-        double[] initPoint;
-        if (rotationManager.getCalibrated()) {
-            initPoint = rotationManager.getCentre();
-        } else {
-            MultivariateSummaryStatistics stats = new MultivariateSummaryStatistics(3, false);
-            for (PointValuePair point : points_) {
-                stats.addValue(point.getPoint());
+        final double[][] points = points_.toArrays();
+        // The algebraic fit gives the initial guess, unless there are too few points
+        final double[] initPoint = (points[0].length < 3 && rotationManager.getCalibrated())
+                ? rotationManager.getCentre()
+                : null;
+        final int direction = getSelectedDirection();
+        final CalibrationEngine engine = new CalibrationEngine(getSelectedSolver());
+        final double[] tilt = tiltEstimator_.getTilt();
+        // The ZX centre is the centre of the circle of the points, at their mean Y
+        final double centreY = tiltEstimator_.getMean()[2];
+        // Warm start from the online estimate when there is one
+        final CalibrationResult previous = onlineTick.isSelected() ? onlineResult_ : null;
+
+        setCalibrating(true);
+        // Run the optimisation off the EDT, the GUI stays responsive meanwhile
+        new SwingWorker<CalibrationResult, Void>() {
+            @Override
+            protected CalibrationResult doInBackground() {
+                if (previous != null) {
+                    return engine.refine(points[0], points[1], points[2], direction, previous);
+                }
+                return engine.calibrate(points[0], points[1], points[2], direction, initPoint);
+            }
+
+            @Override
+            protected void done() {
+                setCalibrating(false);
+                try {
+                    CalibrationResult result = get();
+                    rotationManager.registerTilt(tilt[0], tilt[1]);
+                    registerCalibration(result, points, centreY);
+                } catch (InterruptedException | ExecutionException e) {
+                    studio_.logs().showError(e, "Calibration failed");
+                }
             }
-            initPoint = stats.getMean();
+        }.execute();
+    }
+
+    /**
+     * Points, direction and solver to refine, taken on the EDT
+     */
+    private static final class OnlineRequest {
+        final double[][] points;
+        final int direction;
+        final CalibrationEngine.Solver solver;
+        final int generation;
+
+        OnlineRequest(double[][] points, int direction, CalibrationEngine.Solver solver, int generation) {
+            this.points = points;
+            this.direction = direction;
+            this.solver = solver;
+            this.generation = generation;
         }
+    }
 
-        double meanDist = 0.0;
-        for (PointValuePair point : points_) {
-            double[] stored = point.getPoint();
-            meanDist += Math.sqrt(Math.pow(initPoint[0] - stored[0], 2) + Math.pow(initPoint[1] - stored[1], 2));
+    private void requestOnlineRefinement() {
+        if (!onlineTick.isSelected() || points_.size() < 2 || onlineExecutor_.isShutdown()) {
+            return;
         }
-        meanDist /= points_.size();
+        OnlineRequest request = new OnlineRequest(points_.toArrays(), getSelectedDirection(), getSelectedSolver(),
+                onlineGeneration_.get());
+        // A pending request is replaced, and will be picked by the queued task
+        if (onlineRequest_.getAndSet(request) == null) {
+            onlineExecutor_.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refineOnline();
+                }
+            });
+        }
+    }
 
-        int direction;
-        if (rotationDirButton1.isSelected()) {
-            direction = 1;
-        } else {
-            direction = -1;
+    private void refineOnline() {
+        OnlineRequest request = onlineRequest_.getAndSet(null);
+        if (request == null || request.generation != onlineGeneration_.get()) {
+            return;
+        }
+        if (request.generation != workerGeneration_) {
+            workerResult_ = null;
+            workerGeneration_ = request.generation;
         }
 
-        SimplexOptimizer optim = new SimplexOptimizer(OPTIM_REL_THRESH, OPTIM_ABS_THRESH);
-        PointValuePair result = optim.optimize(new NelderMeadSimplex(4), GoalType.MINIMIZE,
-                new InitialGuess(new double[] { initPoint[0], initPoint[1], meanDist, 0.0 }),
-                new ObjectiveFunction(new CircleFittingFunction(points_, direction, Z_ERROR_WEIGHT)),
-                MaxEval.unlimited(), new MaxIter(OPTIM_MAX_ITER));
+        try {
+            double[][] points = request.points;
+            final CalibrationResult result = new CalibrationEngine(request.solver).refine(points[0], points[1],
+                    points[2], request.direction, workerResult_);
+            workerResult_ = result;
+
+            final int generation = request.generation;
+            final int count = points[0].length;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == onlineGeneration_.get()) {
+                        onlineResult_ = result;
+                        updateOnlineLabel(result, count);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            studio_.logs().logError(e, "Online calibration refinement failed");
+        }
+    }
 
-        optim = new SimplexOptimizer(OPTIM_REL_THRESH_PRECISE, OPTIM_ABS_THRESH);
-        result = optim.optimize(new NelderMeadSimplex(4), GoalType.MINIMIZE,
-                new InitialGuess(new double[] { result.getPoint()[0], result.getPoint()[1], result.getPoint()[2],
-                        result.getPoint()[3] }),
-                new ObjectiveFunction(new CircleFittingFunction(points_, direction, Z_ERROR_WEIGHT)),
-                MaxEval.unlimited(), new MaxIter(OPTIM_MAX_ITER));
+    /**
+     * Discard the online estimate and any refinement in progress
+     */
+    private void resetOnline() {
+        onlineGeneration_.incrementAndGet();
+        onlineResult_ = null;
+        updateOnlineLabel(null, 0);
+    }
 
-        double centreZ = Precision.round(result.getPoint()[0], 2);
-        double centreX = Precision.round(result.getPoint()[1], 2);
+    private void updateOnlineLabel(CalibrationResult result, int count) {
+        if (!onlineTick.isSelected()) {
+            onlineLabel.setText(" ");
+        } else if (result == null) {
+            onlineLabel.setText("Online estimate -- (need 2 points)");
+        } else {
+            double[] uncertainty = result.getCentreUncertainty();
+            onlineLabel.setText(String.format("Online estimate -- ZX: (%.2f ± %s ; %.2f ± %s) -- %d points",
+                    result.getCentreZ(), formatUncertainty(uncertainty[0]), result.getCentreX(),
+                    formatUncertainty(uncertainty[1]), count));
+        }
+    }
+
+    private static String formatUncertainty(double value) {
+        return Double.isNaN(value) ? "?" : String.format("%.2f", value);
+    }
+
+    private void registerCalibration(CalibrationResult result, double[][] points, double centreY) {
+        int direction = result.getRotationDirection();
+        double centreZ = Precision.round(result.getCentreZ(), 2);
+        double centreX = Precision.round(result.getCentreX(), 2);
 
-        rotationManager.registerCalibration(centreZ, centreX, direction, true);
+        rotationManager.registerCalibration(centreZ, centreX, Precision.round(centreY, 2), direction, true);
+        updateCalibrationLabel();
+        core_.logMessage("Rotation calibration: " + result.toString());
 
-        JOptionPane.showMessageDialog(null, "Calibration successful! " + calibrationString() + " -- " + tiltString());
+        double[] uncertainty = result.getCentreUncertainty();
+        JOptionPane.showMessageDialog(null, "Calibration successful! " + calibrationString() + " -- " + tiltString()
+                + String.format(" -- uncertainty: (%.2f;%.2f)", uncertainty[0], uncertainty[1]) + " ("
+                + result.getSolver() + ", " + result.getEvaluations() + " evaluations)");
         // this.dispose();
 
         if (debugTick.isSelected()) {
@@ -210,10 +336,9 @@ public class CalibrationFrame extends JFrame {
                     FileWriter writer = new FileWriter(file);
                     PrintWriter printWriter = new PrintWriter(writer);
 
-                    for (PointValuePair point : points_) {
-                        double[] stored = point.getPoint();
-                        printWriter.printf("%f %f %f %f\n", Math.toDegrees(point.getValue() * direction), stored[0],
-                                stored[1], stored[2]);
+                    for (int i = 0; i < points[0].length; i++) {
+                        printWriter.printf("%f %f %f %f\n", Math.toDegrees(points[0][i] * direction), points[1][i],
+                                points[2][i], points[3][i]);
                     }
                     printWriter.close();
 
@@ -235,17 +360,45 @@ public class CalibrationFrame extends JFrame {
         }
     }
 
+    private void setCalibrating(boolean calibrating) {
+        if (calibrating) {
+            calibrateButton.setText("Calibrating...");
+            calibrateButton.setEnabled(false);
+            tiltButton.setEnabled(false);
+        } else {
+            calibrateButton.setText("Calibrate!");
+            updateStoredPoints();
+        }
+    }
+
+    private CalibrationEngine.Solver getSelectedSolver() {
+        return (CalibrationEngine.Solver) solverSelect.getSelectedItem();
+    }
+
+    private CalibrationEngine.Solver loadSolver() {
+        String solver = studio_.profile().getSettings(CalibrationFrame.class).getString(SOLVER,
+                CalibrationEngine.Solver.SIMPLEX.name());
+        try {
+            return CalibrationEngine.Solver.valueOf(solver);
+        } catch (IllegalArgumentException e) {
+            return CalibrationEngine.Solver.SIMPLEX;
+        }
+    }
+
+    private int getSelectedDirection() {
+        if (rotationDirButton1.isSelected()) {
+            return 1;
+        } else {
+            return -1;
+        }
+    }
+
     private void manualCalibrate() {
         try {
             double centreZ = Double.parseDouble(manualCZ.getText());
             double centreX = Double.parseDouble(manualCX.getText());
 
-            int direction;
-            if (rotationDirButton1.isSelected()) {
-                direction = 1;
-            } else {
-                direction = -1;
-            }
+            int direction = getSelectedDirection();
             rotationManager.registerCalibration(centreZ, centreX, direction, true);
             JOptionPane.showMessageDialog(null, "Calibration successful! " + calibrationString());
             // this.dispose();
@@ -263,6 +416,9 @@ public class CalibrationFrame extends JFrame {
         int direction = rotationManager.getRotationDirection();
 
         String centreS = "ZX: (" + Double.toString(centre[0]) + ";" + Double.toString(centre[1]) + ")";
+        if (rotationManager.getTiltCompensation()) {
+            centreS += " at Y: " + Double.toString(rotationManager.getSettings().getCentreY());
+        }
         String dirS = "R: " + Integer.toString(direction);
 
         return centreS + " -- " + dirS;
@@ -307,6 +463,25 @@ public class CalibrationFrame extends JFrame {
         pointsLabel = new JLabel("0");
         this.add(pointsLabel, "wrap");
 
+        liveTiltLabel = new JLabel();
+        this.add(liveTiltLabel, "span, wrap");
+
+        onlineTick = new JCheckBox("Refine online as points are added");
+        onlineTick.setFont(new Font("Arial", Font.PLAIN, 10));
+        onlineTick.setSelected(studio_.profile().getSettings(CalibrationFrame.class).getBoolean(ONLINE, false));
+        onlineTick.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                studio_.profile().getSettings(CalibrationFrame.class).putBoolean(ONLINE, onlineTick.isSelected());
+                resetOnline();
+                requestOnlineRefinement();
+            }
+        });
+        this.add(onlineTick, "span, wrap");
+
+        onlineLabel = new JLabel(" ");
+        this.add(onlineLabel, "span, wrap");
+
         JButton presetButton = new JButton("Add point");
         presetButton.setFont(new Font("Arial", Font.PLAIN, 10));
         presetButton.addActionListener(new ActionListener() {
@@ -315,11 +490,12 @@ public class CalibrationFrame extends JFrame {
                 try {
                     double[] zx = rotationManager.getZXCoordinates();
                     Point2D.Double pos = core_.getXYStagePosition(core_.getXYStageDevice());
-                    double[] zxy_coords = { zx[0], zx[1], pos.y };
                     double r = rotationManager.getRPosition(true);
 
-                    points_.add(new PointValuePair(zxy_coords, r));
+                    points_.add(r, zx[0], zx[1], pos.y);
+                    tiltEstimator_.add(zx[0], zx[1], pos.y);
                     updateStoredPoints();
+                    requestOnlineRefinement();
                 } catch (Exception ex) {
                     studio_.logs().logError(ex);
                 }
@@ -355,6 +531,19 @@ public class CalibrationFrame extends JFrame {
         radioButtons.add(rotationDirButton1);
         radioButtons.add(rotationDirButton2);
 
+        presetLabel = new JLabel("Solver:");
+        solverSelect = new JComboBox<>(CalibrationEngine.Solver.values());
+        solverSelect.setFont(new Font("Arial", Font.PLAIN, 10));
+        solverSelect.setSelectedItem(loadSolver());
+        solverSelect.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                studio_.profile().getSettings(CalibrationFrame.class).putString(SOLVER, getSelectedSolver().name());
+            }
+        });
+        this.add(presetLabel, "gaptop 10, split 2");
+        this.add(solverSelect, "growx, wrap");
+
         calibrateButton = new JButton("Calibrate!");
         calibrateButton.setFont(new Font("Arial", Font.BOLD, 12));
         calibrateButton.addActionListener(new ActionListener() {
@@ -363,13 +552,12 @@ public class CalibrationFrame extends JFrame {
                 int result = JOptionPane.showConfirmDialog(null, "Start calibration?", "Calibrate!",
                         JOptionPane.YES_NO_OPTION);
                 if (result == JOptionPane.YES_OPTION) {
-                    compute_tilt(false);
                     calibrate();
                 }
             }
         });
         calibrateButton.setEnabled(false);
-        this.add(calibrateButton, "span 2, grow, height 40!, gaptop 20");
+        this.add(calibrateButton, "span 2, grow, height 40!, gaptop 10");
 
         debugTick = new JCheckBox("Debug info");
         debugTick.setSelected(false);
@@ -386,6 +574,18 @@ public class CalibrationFrame extends JFrame {
         tiltButton.setEnabled(false);
         this.add(tiltButton, "span 2, grow, height 40!, gaptop 10, wrap");
 
+        tiltCompensationTick = new JCheckBox("Compensate the tilt in 3D (moves Y)");
+        tiltCompensationTick.setFont(new Font("Arial", Font.PLAIN, 10));
+        tiltCompensationTick.setSelected(rotationManager.getTiltCompensation());
+        tiltCompensationTick.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                rotationManager.setTiltCompensation(tiltCompensationTick.isSelected());
+                updateCalibrationLabel();
+            }
+        });
+        this.add(tiltCompensationTick, "span, wrap");
+
         presetButton = new JButton("Reset");
         presetButton.setFont(new Font("Arial", Font.ITALIC, 10));
         presetButton.addActionListener(new ActionListener() {
@@ -427,47 +627,4 @@ public class CalibrationFrame extends JFrame {
         pack();
     }
 
-    public class CircleFittingFunction implements MultivariateFunction {
-
-        private final ArrayList<PointValuePair> points_;
-        private final int direction;
-        private final double zErrorWeight;
-
-        public CircleFittingFunction(ArrayList<PointValuePair> points, int rotationDir, double zErrorWeight) {
-            points_ = points;
-            direction = rotationDir;
-            this.zErrorWeight = zErrorWeight;
-        }
-
-        private double[] computePoint(double[] centre, double rad, double theta0, double theta) {
-            double angle = theta0 + theta;
-
-            double z = centre[0] + rad * Math.cos(angle);
-            double x = centre[1] + rad * Math.sin(angle);
-
-            return new double[] { z, x };
-        }
-
-        @Override
-        public double value(double[] doubles) {
-            double[] centre = Arrays.copyOfRange(doubles, 0, 2);
-            double radius = doubles[2];
-            double theta0 = doubles[3];
-
-            double MSE = 0.0;
-
-            for (PointValuePair point : points_) {
-                double[] coord = point.getPoint();
-                double angle = point.getValue() * direction;
-                double[] computed = computePoint(centre, radius, theta0, angle);
-
-                MSE += zErrorWeight
-                        * Math.sqrt(Math.pow(coord[0] - computed[0], 2) + Math.pow(coord[1] - computed[1], 2));
-            }
-            MSE /= points_.size();
-            return MSE;
-        }
-
-    }
-
 }
@@ -0,0 +1,119 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.Arrays;
+
+/**
+ * Growable store of calibration points, kept as one primitive array per
+ * coordinate (angle in radians, Z, X, Y) so that the fitting code reads them
+ * without boxing or copying per point.
+ *
+ * Not thread-safe: take a {@link #toArrays()} snapshot before handing the
+ * points to another thread.
+ */
+public class CalibrationPoints {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] angles_;
+    private double[] z_;
+    private double[] x_;
+    private double[] y_;
+    private int size_;
+
+    public CalibrationPoints() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public CalibrationPoints(int capacity) {
+        capacity = Math.max(capacity, 1);
+        angles_ = new double[capacity];
+        z_ = new double[capacity];
+        x_ = new double[capacity];
+        y_ = new double[capacity];
+        size_ = 0;
+    }
+
+    /**
+     * @param angle rotation angle of the point, in radians
+     * @param z
+     * @param x
+     * @param y
+     */
+    public void add(double angle, double z, double x, double y) {
+        if (size_ == angles_.length) {
+            int capacity = angles_.length * 2;
+            angles_ = Arrays.copyOf(angles_, capacity);
+            z_ = Arrays.copyOf(z_, capacity);
+            x_ = Arrays.copyOf(x_, capacity);
+            y_ = Arrays.copyOf(y_, capacity);
+        }
+        angles_[size_] = angle;
+        z_[size_] = z;
+        x_[size_] = x;
+        y_[size_] = y;
+        size_++;
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    public void clear() {
+        size_ = 0;
+    }
+
+    public double getAngle(int index) {
+        checkIndex(index);
+        return angles_[index];
+    }
+
+    public double getZ(int index) {
+        checkIndex(index);
+        return z_[index];
+    }
+
+    public double getX(int index) {
+        checkIndex(index);
+        return x_[index];
+    }
+
+    public double getY(int index) {
+        checkIndex(index);
+        return y_[index];
+    }
+
+    /**
+     * Copy the points to arrays of the exact point count
+     *
+     * @return the angles, Z, X and Y coordinates
+     */
+    public double[][] toArrays() {
+        return new double[][] { Arrays.copyOf(angles_, size_), Arrays.copyOf(z_, size_), Arrays.copyOf(x_, size_),
+                Arrays.copyOf(y_, size_) };
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size_) {
+            throw new IndexOutOfBoundsException("Point " + index + " of " + size_);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+/**
+ * Outcome of a rotation axis calibration, see {@link CalibrationEngine}
+ */
+public final class CalibrationResult {
+
+    private final double centreZ_;
+    private final double centreX_;
+    private final double radius_;
+    private final double theta0_;
+    private final int direction_;
+    private final CalibrationEngine.Solver solver_;
+    private final double cost_;
+    private final int evaluations_;
+    private final int iterations_;
+    private final double[] residuals_;
+    private final double[][] covariance_;
+
+    CalibrationResult(double[] parameters, int direction, CalibrationEngine.Solver solver, double cost,
+            int evaluations, int iterations, double[] residuals, double[][] covariance) {
+        centreZ_ = parameters[0];
+        centreX_ = parameters[1];
+        radius_ = parameters[2];
+        theta0_ = parameters[3];
+        direction_ = direction;
+        solver_ = solver;
+        cost_ = cost;
+        evaluations_ = evaluations;
+        iterations_ = iterations;
+        residuals_ = residuals;
+        covariance_ = covariance;
+    }
+
+    public double getCentreZ() {
+        return centreZ_;
+    }
+
+    public double getCentreX() {
+        return centreX_;
+    }
+
+    /**
+     * @return the ZX centre of rotation
+     */
+    public double[] getCentre() {
+        return new double[] { centreZ_, centreX_ };
+    }
+
+    /**
+     * @return the radius of the trajectory of the calibration point
+     */
+    public double getRadius() {
+        return radius_;
+    }
+
+    /**
+     * @return the angular position of the calibration point at motor angle 0, in
+     *         radians
+     */
+    public double getTheta0() {
+        return theta0_;
+    }
+
+    /**
+     * @return the (centreZ, centreX, radius, theta0) model parameters
+     */
+    public double[] getParameters() {
+        return new double[] { centreZ_, centreX_, radius_, theta0_ };
+    }
+
+    public int getRotationDirection() {
+        return direction_;
+    }
+
+    /**
+     * @return the solver that produced the result
+     */
+    public CalibrationEngine.Solver getSolver() {
+        return solver_;
+    }
+
+    /**
+     * @return the final value of the fitting objective
+     */
+    public double getCost() {
+        return cost_;
+    }
+
+    /**
+     * @return the number of objective evaluations used by the fit
+     */
+    public int getEvaluations() {
+        return evaluations_;
+    }
+
+    /**
+     * @return the number of optimizer iterations used by the fit
+     */
+    public int getIterations() {
+        return iterations_;
+    }
+
+    /**
+     * @return the ZX residuals (observed - fitted) of each point, ordered (z0,
+     *         x0, z1, x1, ...)
+     */
+    public double[] getResiduals() {
+        return residuals_.clone();
+    }
+
+    /**
+     * Least-squares covariance of the (centreZ, centreX, radius, theta0)
+     * parameters at the solution, scaled by the residual variance
+     *
+     * @return the 4x4 covariance matrix, or null if it cannot be estimated (too
+     *         few points)
+     */
+    public double[][] getCovariance() {
+        if (covariance_ == null) {
+            return null;
+        }
+        double[][] covariance = new double[covariance_.length][];
+        for (int i = 0; i < covariance_.length; i++) {
+            covariance[i] = covariance_[i].clone();
+        }
+        return covariance;
+    }
+
+    /**
+     * @return the standard deviation of the ZX centre estimate, NaN if unknown
+     */
+    public double[] getCentreUncertainty() {
+        if (covariance_ == null) {
+            return new double[] { Double.NaN, Double.NaN };
+        }
+        return new double[] { Math.sqrt(covariance_[0][0]), Math.sqrt(covariance_[1][1]) };
+    }
+
+    @Override
+    public String toString() {
+        double[] uncertainty = getCentreUncertainty();
+        return String.format("ZX: (%f;%f) +- (%f;%f) -- radius: %f -- %s, %d evaluations, %d iterations", centreZ_,
+                centreX_, uncertainty[0], uncertainty[1], radius_, solver_, evaluations_, iterations_);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+/**
+ * Mean weighted distance between the recorded calibration points and the
+ * points predicted by a circular trajectory around the rotation axis. The
+ * parameters are (centreZ, centreX, radius, theta0).
+ *
+ * The evaluation runs over primitive arrays without allocating; large point
+ * sets are split over the common fork-join pool when it has several threads.
+ */
+public class CircleFittingFunction implements MultivariateFunction {
+
+    /**
+     * Point count above which the evaluation is split over the fork-join pool
+     */
+    public static final int PARALLEL_THRESHOLD = 8192;
+
+    private final double[] angles_;
+    private final double[] z_;
+    private final double[] x_;
+    private final int count_;
+    private final double zErrorWeight;
+    private final int parallelThreshold_;
+
+    /**
+     * @param angles      rotation angle of each point, in radians
+     * @param z           Z coordinate of each point
+     * @param x           X coordinate of each point
+     * @param rotationDir rotation direction
+     * @param zErrorWeight
+     */
+    public CircleFittingFunction(double[] angles, double[] z, double[] x, int rotationDir, double zErrorWeight) {
+        this(angles, z, x, angles.length, rotationDir, zErrorWeight, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param angles            rotation angle of each point, in radians
+     * @param z                 Z coordinate of each point
+     * @param x                 X coordinate of each point
+     * @param count             number of points used, from the start of the
+     *                          arrays
+     * @param rotationDir       rotation direction
+     * @param zErrorWeight
+     * @param parallelThreshold point count above which the evaluation is
+     *                          parallel
+     */
+    public CircleFittingFunction(double[] angles, double[] z, double[] x, int count, int rotationDir,
+            double zErrorWeight, int parallelThreshold) {
+        // Signed angles are computed once instead of at every evaluation
+        angles_ = new double[count];
+        for (int i = 0; i < count; i++) {
+            angles_[i] = angles[i] * rotationDir;
+        }
+        z_ = z;
+        x_ = x;
+        count_ = count;
+        this.zErrorWeight = zErrorWeight;
+        parallelThreshold_ = Math.max(parallelThreshold, 1);
+    }
+
+    @Override
+    public double value(double[] doubles) {
+        double centreZ = doubles[0];
+        double centreX = doubles[1];
+        double radius = doubles[2];
+        double theta0 = doubles[3];
+
+        double sum;
+        if (count_ > parallelThreshold_ && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            sum = ForkJoinPool.commonPool()
+                    .invoke(new PartialSum(centreZ, centreX, radius, theta0, 0, count_));
+        } else {
+            sum = sumDistances(centreZ, centreX, radius, theta0, 0, count_);
+        }
+
+        return zErrorWeight * sum / count_;
+    }
+
+    private double sumDistances(double centreZ, double centreX, double radius, double theta0, int from, int to) {
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            double angle = theta0 + angles_[i];
+
+            double dz = z_[i] - (centreZ + radius * Math.cos(angle));
+            double dx = x_[i] - (centreX + radius * Math.sin(angle));
+
+            sum += Math.sqrt(dz * dz + dx * dx);
+        }
+        return sum;
+    }
+
+    /**
+     * Sum of the distances over a range of points, halved until it is below
+     * the parallel threshold
+     */
+    private class PartialSum extends RecursiveTask<Double> {
+
+        private final double centreZ_;
+        private final double centreX_;
+        private final double radius_;
+        private final double theta0_;
+        private final int from_;
+        private final int to_;
+
+        PartialSum(double centreZ, double centreX, double radius, double theta0, int from, int to) {
+            centreZ_ = centreZ;
+            centreX_ = centreX;
+            radius_ = radius;
+            theta0_ = theta0;
+            from_ = from;
+            to_ = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to_ - from_ <= parallelThreshold_) {
+                return sumDistances(centreZ_, centreX_, radius_, theta0_, from_, to_);
+            }
+
+            int middle = (from_ + to_) >>> 1;
+            PartialSum left = new PartialSum(centreZ_, centreX_, radius_, theta0_, from_, middle);
+            left.fork();
+            double right = new PartialSum(centreZ_, centreX_, radius_, theta0_, middle, to_).compute();
+            return left.join() + right;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Least-squares form of {@link CircleFittingFunction}: predicted ZX position of
+ * every calibration point, with the analytic Jacobian with respect to the
+ * (centreZ, centreX, radius, theta0) parameters. Values are ordered (z0, x0,
+ * z1, x1, ...).
+ */
+public class CircleFittingModel implements MultivariateJacobianFunction {
+
+    private final double[] angles_;
+    private final int direction;
+
+    /**
+     * @param angles      rotation angle of each point, in radians
+     * @param rotationDir rotation direction
+     */
+    public CircleFittingModel(double[] angles, int rotationDir) {
+        angles_ = angles;
+        direction = rotationDir;
+    }
+
+    /**
+     * Build the observation vector matching the model values
+     *
+     * @param z Z coordinate of each point
+     * @param x X coordinate of each point
+     * @return
+     */
+    public static double[] target(double[] z, double[] x) {
+        double[] target = new double[2 * z.length];
+        for (int i = 0; i < z.length; i++) {
+            target[2 * i] = z[i];
+            target[2 * i + 1] = x[i];
+        }
+        return target;
+    }
+
+    @Override
+    public Pair<RealVector, RealMatrix> value(RealVector point) {
+        double centreZ = point.getEntry(0);
+        double centreX = point.getEntry(1);
+        double radius = point.getEntry(2);
+        double theta0 = point.getEntry(3);
+
+        double[] values = new double[2 * angles_.length];
+        double[][] jacobian = new double[2 * angles_.length][];
+
+        for (int i = 0; i < angles_.length; i++) {
+            double angle = theta0 + angles_[i] * direction;
+            double cos = Math.cos(angle);
+            double sin = Math.sin(angle);
+
+            values[2 * i] = centreZ + radius * cos;
+            values[2 * i + 1] = centreX + radius * sin;
+
+            jacobian[2 * i] = new double[] { 1.0, 0.0, cos, -radius * sin };
+            jacobian[2 * i + 1] = new double[] { 0.0, 1.0, sin, radius * cos };
+        }
+
+        return new Pair<RealVector, RealMatrix>(new ArrayRealVector(values, false),
+                new Array2DRowRealMatrix(jacobian, false));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+/**
+ * Cosine and sine of every multiple of a fixed angular step over a full turn,
+ * so that the compensation of fixed-step rotations does not evaluate any
+ * trigonometric function. Lookups are O(1) and do not allocate.
+ *
+ * The table only depends on the step: the centre, tilt and direction are taken
+ * from the {@link RotationCompensation} at lookup time, so a new calibration
+ * never invalidates it. The direction only flips the sign of the sine.
+ */
+public final class CompensationTable {
+
+    private static final double TOLERANCE = 1e-9;
+
+    private final double stepDeg_;
+    private final double[] cos_;
+    private final double[] sin_;
+
+    /**
+     * @param stepDeg angular step in degrees, dividing 360
+     * @throws IllegalArgumentException if the step does not divide a full turn
+     */
+    public CompensationTable(double stepDeg) {
+        double steps = 360.0 / Math.abs(stepDeg);
+        long size = Math.round(steps);
+        if (!(stepDeg != 0.0 && size > 0 && size <= Integer.MAX_VALUE / 2 && Math.abs(steps - size) < 1e-6)) {
+            throw new IllegalArgumentException("The step must divide 360 degrees: " + stepDeg);
+        }
+        stepDeg_ = 360.0 / size;
+        cos_ = new double[(int) size];
+        sin_ = new double[(int) size];
+        for (int i = 0; i < size; i++) {
+            double radAngle = Math.toRadians(i * stepDeg_);
+            cos_[i] = Math.cos(radAngle);
+            sin_[i] = Math.sin(radAngle);
+        }
+    }
+
+    public double getStep() {
+        return stepDeg_;
+    }
+
+    public int size() {
+        return cos_.length;
+    }
+
+    /**
+     * @param angleDeg motor angle in degrees, of any sign and magnitude
+     * @return the index of the angle in the table, or -1 if it is not a multiple
+     *         of the step
+     */
+    public int indexOf(double angleDeg) {
+        double steps = angleDeg / stepDeg_;
+        double rounded = Math.rint(steps);
+        if (Math.abs(steps - rounded) > TOLERANCE * Math.max(1.0, Math.abs(steps))) {
+            return -1;
+        }
+        int index = (int) (((long) rounded) % cos_.length);
+        return index < 0 ? index + cos_.length : index;
+    }
+
+    /**
+     * Same as {@link RotationCompensation#compute(double, double[], boolean, double[])}
+     * for the angle at the given index
+     *
+     * @param compensation
+     * @param index        index of the angle, see {@link #indexOf(double)}
+     * @param origin
+     * @param relative
+     * @param out
+     */
+    public void compute(RotationCompensation compensation, int index, double[] origin, boolean relative,
+            double[] out) {
+        compensation.compute(cos_[index], compensation.getRotationDirection() * sin_[index], origin[0], origin[1],
+                relative, out);
+    }
+
+    /**
+     * Same as
+     * {@link RotationCompensation#compute3D(double, double[], boolean, double[])}
+     * for the angle at the given index
+     *
+     * @param compensation
+     * @param index        index of the angle, see {@link #indexOf(double)}
+     * @param origin
+     * @param relative
+     * @param out
+     */
+    public void compute3D(RotationCompensation compensation, int index, double[] origin, boolean relative,
+            double[] out) {
+        compensation.compute3D(cos_[index], compensation.getRotationDirection() * sin_[index], origin[0], origin[1],
+                origin[2], relative, out);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with a bounded relative error, in the
+ * manner of HdrHistogram. Values below 2^SUB_BUCKET_BITS are counted exactly;
+ * above, each power of two is split in 2^(SUB_BUCKET_BITS - 1) linear buckets,
+ * so a recorded value is known within 1/64 (about 1.6%) whatever its
+ * magnitude. The memory footprint is fixed.
+ *
+ * Recording is lock-free and can be done from any thread. Statistics read while
+ * values are recorded may be off by the values in flight.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    // Largest shift is for Long.MAX_VALUE, of magnitude 62
+    private static final int BUCKETS = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+    private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count_ = new AtomicLong();
+    private final AtomicLong sum_ = new AtomicLong();
+    private final AtomicLong min_ = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max_ = new AtomicLong(0);
+
+    private static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int sub = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (sub - SUB_BUCKET_HALF);
+    }
+
+    /**
+     * @return the largest value counted in the bucket of the given index
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param nanos duration, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts_.incrementAndGet(index(value));
+        count_.incrementAndGet();
+        sum_.addAndGet(value);
+
+        long min = min_.get();
+        while (value < min && !min_.compareAndSet(min, value)) {
+            min = min_.get();
+        }
+        long max = max_.get();
+        while (value > max && !max_.compareAndSet(max, value)) {
+            max = max_.get();
+        }
+    }
+
+    public long getCount() {
+        return count_.get();
+    }
+
+    /**
+     * @return smallest recorded value in nanoseconds, 0 if empty
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : min_.get();
+    }
+
+    /**
+     * @return largest recorded value in nanoseconds
+     */
+    public long getMax() {
+        return max_.get();
+    }
+
+    /**
+     * @return mean of the recorded values in nanoseconds, NaN if empty
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? Double.NaN : sum_.get() / (double) count;
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values
+     * fall, within the histogram precision
+     * 
+     * @param percentile between 0 and 100
+     * @return value in nanoseconds, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        double clamped = Math.min(Math.max(percentile, 0.0), 100.0);
+        long target = Math.max(1, (long) Math.ceil(clamped / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts_.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts_.set(i, 0);
+        }
+        count_.set(0);
+        sum_.set(0);
+        min_.set(Long.MAX_VALUE);
+        max_.set(0);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import mmcorej.CMMCore;
+
+/**
+ * Pending stage motion, completed when every moving axis has settled. The
+ * futures of the individual axes complete as soon as their own device is no
+ * longer busy.
+ *
+ * Cancelling the motion cancels the axes that have not settled yet, and stops
+ * the devices that were already commanded.
+ */
+public class MotionFuture extends CompletableFuture<Void> {
+
+    private static final CompletableFuture<Void> NOT_MOVING = CompletableFuture.completedFuture(null);
+
+    private final CMMCore core_;
+    private final CompletableFuture<Void>[] axes_;
+    private final String[] devices_;
+
+    /**
+     * Future of a single axis, knowing whether its command was sent
+     */
+    static final class Axis extends CompletableFuture<Void> {
+
+        private volatile boolean issued_ = false;
+
+        void setIssued() {
+            issued_ = true;
+        }
+
+        boolean isIssued() {
+            return issued_;
+        }
+    }
+
+    /**
+     * @param core
+     * @param axes    futures indexed by OpticalRotation.PHASE_R, PHASE_Z and
+     *                PHASE_X, null for axes that do not move
+     * @param devices devices of the axes
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    MotionFuture(CMMCore core, Axis[] axes, String[] devices) {
+        core_ = core;
+        axes_ = new CompletableFuture[axes.length];
+        devices_ = devices.clone();
+
+        int moving = 0;
+        for (int i = 0; i < axes.length; i++) {
+            axes_[i] = axes[i] == null ? NOT_MOVING : axes[i];
+            if (axes[i] != null) {
+                moving++;
+            }
+        }
+
+        CompletableFuture<Void>[] all = new CompletableFuture[moving];
+        moving = 0;
+        for (CompletableFuture<Void> axis : axes) {
+            if (axis != null) {
+                all[moving++] = axis;
+            }
+        }
+
+        CompletableFuture.allOf(all).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                if (error == null) {
+                    complete(null);
+                } else {
+                    completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param phase OpticalRotation.PHASE_R, PHASE_Z or PHASE_X
+     * @return the future of the axis, already completed if the axis does not
+     *         move
+     */
+    public CompletableFuture<Void> getAxis(int phase) {
+        return axes_[phase];
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // Cancel the motion first, the cancelled axes would complete it otherwise
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        for (int i = 0; i < axes_.length; i++) {
+            // Axes waiting for their turn have nothing to stop; an axis issued
+            // while being cancelled is stopped by its issuer
+            boolean issued = axes_[i] instanceof Axis && ((Axis) axes_[i]).isIssued();
+            if (axes_[i].cancel(mayInterruptIfRunning) && issued) {
+                try {
+                    core_.stop(devices_[i]);
+                } catch (Exception e) {
+                    core_.logMessage("Could not stop " + devices_[i] + ": " + e.getMessage());
+                }
+            }
+        }
+        return cancelled;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+/**
+ * How a stage is moved and when its motion is considered over:
+ * <ul>
+ * <li>unidirectional approach: targets are always reached moving in the same
+ * direction, going past the target by the backlash distance first when
+ * needed;</li>
+ * <li>settle delay: waited for once the device reports it is no longer
+ * busy;</li>
+ * <li>position verification: the position is read back until it is within the
+ * tolerance of the target, or the verification times out.</li>
+ * </ul>
+ *
+ * Distances are in the units of the device (µm, degrees). Instances are
+ * immutable.
+ */
+public final class MotionProfile {
+
+    /**
+     * Profile of a stage moved as is
+     */
+    public static final MotionProfile NONE = new MotionProfile(0, 0.0, 0, 0.0, 0);
+
+    private final int approachDirection_;
+    private final double backlash_;
+    private final long settleMs_;
+    private final double tolerance_;
+    private final long verifyTimeoutMs_;
+
+    /**
+     * @param approachDirection 1 or -1 to always reach targets moving towards
+     *                          positive or negative positions, 0 for no rule
+     * @param backlash          distance by which the target is passed before
+     *                          approaching it
+     * @param settleMs          delay after the device reports it is no longer
+     *                          busy
+     * @param tolerance         maximal distance between the position read back
+     *                          and the target, 0 to skip the verification
+     * @param verifyTimeoutMs   time after which a position out of tolerance is
+     *                          an error
+     */
+    public MotionProfile(int approachDirection, double backlash, long settleMs, double tolerance,
+            long verifyTimeoutMs) {
+        if (approachDirection < -1 || approachDirection > 1) {
+            throw new IllegalArgumentException("The approach direction must be -1, 0 or 1");
+        }
+        approachDirection_ = approachDirection;
+        backlash_ = Math.abs(backlash);
+        settleMs_ = Math.max(settleMs, 0);
+        tolerance_ = Math.abs(tolerance);
+        verifyTimeoutMs_ = Math.max(verifyTimeoutMs, 0);
+    }
+
+    public int getApproachDirection() {
+        return approachDirection_;
+    }
+
+    public double getBacklash() {
+        return backlash_;
+    }
+
+    public long getSettleMs() {
+        return settleMs_;
+    }
+
+    public double getTolerance() {
+        return tolerance_;
+    }
+
+    public long getVerifyTimeoutMs() {
+        return verifyTimeoutMs_;
+    }
+
+    public boolean hasApproach() {
+        return approachDirection_ != 0 && backlash_ > 0.0;
+    }
+
+    public boolean isVerified() {
+        return tolerance_ > 0.0;
+    }
+
+    /**
+     * @return true if the moves need an absolute target, to choose the approach
+     *         or verify the position
+     */
+    public boolean needsTarget() {
+        return hasApproach() || isVerified();
+    }
+
+    /**
+     * @param current position before the move
+     * @param target
+     * @return the position to go through before the target, or NaN if the
+     *         target is reached in the approach direction anyway, or is already
+     *         within tolerance of the current position
+     */
+    public double getApproachPosition(double current, double target) {
+        double distance = target - current;
+        if (!hasApproach() || Math.signum(distance) == approachDirection_ || Math.abs(distance) <= tolerance_) {
+            return Double.NaN;
+        }
+        return target - approachDirection_ * backlash_;
+    }
+
+    public MotionProfile withApproach(int approachDirection, double backlash) {
+        return new MotionProfile(approachDirection, backlash, settleMs_, tolerance_, verifyTimeoutMs_);
+    }
+
+    public MotionProfile withSettle(long settleMs) {
+        return new MotionProfile(approachDirection_, backlash_, settleMs, tolerance_, verifyTimeoutMs_);
+    }
+
+    public MotionProfile withVerification(double tolerance, long verifyTimeoutMs) {
+        return new MotionProfile(approachDirection_, backlash_, settleMs_, tolerance, verifyTimeoutMs);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("approach: %d (backlash %f) -- settle: %d ms -- tolerance: %f (timeout %d ms)",
+                approachDirection_, backlash_, settleMs_, tolerance_, verifyTimeoutMs_);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.micromanager.Studio;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * The {@link MotionProfile} of each device of a Studio, read from the user
+ * profile on first use. Devices without a stored profile are moved as is.
+ */
+public final class MotionProfileStore {
+
+    private static final String APPROACH = "APPROACH";
+    private static final String BACKLASH = "BACKLASH";
+    private static final String SETTLE = "SETTLEMS";
+    private static final String TOLERANCE = "TOLERANCE";
+    private static final String TIMEOUT = "VERIFYTIMEOUTMS";
+
+    private final Studio studio_;
+    private final Map<String, MotionProfile> profiles_ = new ConcurrentHashMap<>();
+
+    /**
+     * Get the motion profiles of a Studio
+     * 
+     * @param studio
+     * @return
+     * @see RotationContext#getMotionProfiles()
+     */
+    public static MotionProfileStore get(Studio studio) {
+        return RotationContext.get(studio).getMotionProfiles();
+    }
+
+    MotionProfileStore(Studio studio) {
+        studio_ = studio;
+    }
+
+    private static String key(String device, String name) {
+        return device + "." + name;
+    }
+
+    /**
+     * @param device
+     * @return the profile of the device, {@link MotionProfile#NONE} if none was
+     *         set
+     */
+    public MotionProfile getProfile(String device) {
+        MotionProfile profile = profiles_.get(device);
+        if (profile == null) {
+            profile = load(device);
+            profiles_.put(device, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Set and save the profile of a device
+     * 
+     * @param device
+     * @param profile
+     */
+    public void setProfile(String device, MotionProfile profile) {
+        profiles_.put(device, profile);
+
+        MutablePropertyMapView settings = studio_.profile().getSettings(MotionProfileStore.class);
+        settings.putInteger(key(device, APPROACH), profile.getApproachDirection());
+        settings.putDouble(key(device, BACKLASH), profile.getBacklash());
+        settings.putLong(key(device, SETTLE), profile.getSettleMs());
+        settings.putDouble(key(device, TOLERANCE), profile.getTolerance());
+        settings.putLong(key(device, TIMEOUT), profile.getVerifyTimeoutMs());
+    }
+
+    /**
+     * Forget the loaded profiles, they are read from the user profile again
+     */
+    public void reload() {
+        profiles_.clear();
+    }
+
+    private MotionProfile load(String device) {
+        MutablePropertyMapView settings = studio_.profile().getSettings(MotionProfileStore.class);
+        if (!settings.containsKey(key(device, APPROACH))) {
+            return MotionProfile.NONE;
+        }
+        try {
+            return new MotionProfile(settings.getInteger(key(device, APPROACH), 0),
+                    settings.getDouble(key(device, BACKLASH), 0.0), settings.getLong(key(device, SETTLE), 0),
+                    settings.getDouble(key(device, TOLERANCE), 0.0), settings.getLong(key(device, TIMEOUT), 0));
+        } catch (IllegalArgumentException e) {
+            studio_.logs().logError(e, "Invalid motion profile for " + device);
+            return MotionProfile.NONE;
+        }
+    }
+}
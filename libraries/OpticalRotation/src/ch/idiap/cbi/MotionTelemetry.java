@@ -0,0 +1,231 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.micromanager.Studio;
+
+/**
+ * Latency histograms of the stage motions, per source (a device name, or an
+ * operation such as {@link #ROTATION}) and per {@link Metric}. One instance is
+ * shared by all the users of a Studio, so that the motions issued by the
+ * library and by the plugins end up in the same histograms.
+ */
+public final class MotionTelemetry {
+
+    /**
+     * Source of the total duration of the compensated rotations
+     */
+    public static final String ROTATION = "Rotation";
+
+    public enum Metric {
+        /** Waiting for the device to be ready before sending the command */
+        QUEUE_WAIT("queue wait"),
+        /** Sending the command, until the core call returns */
+        COMMAND("command"),
+        /** From the command until the device is no longer busy */
+        SETTLE("settle"),
+        /** Complete operation */
+        TOTAL("total");
+
+        private final String label_;
+
+        Metric(String label) {
+            label_ = label;
+        }
+
+        @Override
+        public String toString() {
+            return label_;
+        }
+    }
+
+    private static final double[] PERCENTILES = new double[] { 50.0, 90.0, 99.0 };
+
+    private final Map<String, LatencyHistogram[]> histograms_ = new ConcurrentHashMap<>();
+
+    /**
+     * Get the telemetry shared by all the users of a Studio
+     * 
+     * @param studio
+     * @return
+     * @see RotationContext#getTelemetry()
+     */
+    public static MotionTelemetry get(Studio studio) {
+        return RotationContext.get(studio).getTelemetry();
+    }
+
+    public MotionTelemetry() {
+    }
+
+    public void record(String source, Metric metric, long nanos) {
+        LatencyHistogram[] histograms = histograms_.get(source);
+        if (histograms == null) {
+            LatencyHistogram[] created = new LatencyHistogram[Metric.values().length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new LatencyHistogram();
+            }
+            histograms = histograms_.putIfAbsent(source, created);
+            if (histograms == null) {
+                histograms = created;
+            }
+        }
+        histograms[metric.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record the waiting and command times of a command sent to a device
+     * 
+     * @param device
+     * @param waitStart  time at which the wait for the device started
+     * @param issueStart time at which the command was sent
+     * @return the current time, at which the command was issued
+     */
+    public long recordIssue(String device, long waitStart, long issueStart) {
+        long issued = System.nanoTime();
+        record(device, Metric.QUEUE_WAIT, issueStart - waitStart);
+        record(device, Metric.COMMAND, issued - issueStart);
+        return issued;
+    }
+
+    /**
+     * @return the sources with recorded values, sorted by name
+     */
+    public List<String> getSources() {
+        List<String> sources = new ArrayList<>(histograms_.keySet());
+        Collections.sort(sources);
+        return sources;
+    }
+
+    /**
+     * @param source
+     * @param metric
+     * @return the histogram, or null if nothing was recorded for the source
+     */
+    public LatencyHistogram getHistogram(String source, Metric metric) {
+        LatencyHistogram[] histograms = histograms_.get(source);
+        return histograms == null ? null : histograms[metric.ordinal()];
+    }
+
+    public void reset() {
+        histograms_.clear();
+    }
+
+    /**
+     * @return one line per source and metric with values, durations in
+     *         milliseconds
+     */
+    public String toCsv() {
+        StringBuilder builder = new StringBuilder("source,metric,count,min_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms\n");
+        for (String source : getSources()) {
+            for (Metric metric : Metric.values()) {
+                LatencyHistogram histogram = getHistogram(source, metric);
+                if (histogram == null || histogram.getCount() == 0) {
+                    continue;
+                }
+                builder.append(csvField(source)).append(',').append(metric.name()).append(',')
+                        .append(histogram.getCount());
+                for (double value : summary(histogram)) {
+                    builder.append(',').append(format(value));
+                }
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return an object keyed by source then by metric, durations in
+     *         milliseconds
+     */
+    public String toJson() {
+        StringBuilder builder = new StringBuilder("{");
+        boolean firstSource = true;
+        for (String source : getSources()) {
+            builder.append(firstSource ? "\n  " : ",\n  ").append(jsonString(source)).append(": {");
+            firstSource = false;
+            boolean firstMetric = true;
+            for (Metric metric : Metric.values()) {
+                LatencyHistogram histogram = getHistogram(source, metric);
+                if (histogram == null || histogram.getCount() == 0) {
+                    continue;
+                }
+                double[] summary = summary(histogram);
+                builder.append(firstMetric ? "\n    " : ",\n    ").append(jsonString(metric.name()))
+                        .append(": {\"count\": ").append(histogram.getCount()).append(", \"min_ms\": ")
+                        .append(format(summary[0])).append(", \"mean_ms\": ").append(format(summary[1]))
+                        .append(", \"p50_ms\": ").append(format(summary[2])).append(", \"p90_ms\": ")
+                        .append(format(summary[3])).append(", \"p99_ms\": ").append(format(summary[4]))
+                        .append(", \"max_ms\": ").append(format(summary[5])).append('}');
+                firstMetric = false;
+            }
+            builder.append(firstMetric ? "}" : "\n  }");
+        }
+        builder.append(firstSource ? "}\n" : "\n}\n");
+        return builder.toString();
+    }
+
+    /**
+     * @param histogram
+     * @return min, mean, p50, p90, p99 and max in milliseconds
+     */
+    public static double[] summary(LatencyHistogram histogram) {
+        double[] summary = new double[3 + PERCENTILES.length];
+        summary[0] = histogram.getMin() / 1e6;
+        summary[1] = histogram.getMean() / 1e6;
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            summary[2 + i] = histogram.getValueAtPercentile(PERCENTILES[i]) / 1e6;
+        }
+        summary[summary.length - 1] = histogram.getMax() / 1e6;
+        return summary;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
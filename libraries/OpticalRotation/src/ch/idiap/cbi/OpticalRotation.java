@@ -20,167 +20,544 @@
 
 package ch.idiap.cbi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import mmcorej.CMMCore;
 import mmcorej.DeviceType;
 import mmcorej.StrVector;
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.micromanager.Studio;
 
 public class OpticalRotation {
 
-    private static final String CURRENTZDRIVE = "CURRENTZDRIVE";
-    private static final String CURRENTRDRIVE = "CURRENTRDRIVE";
-    private static final String CENTREX = "CENTREX";
-    private static final String CENTREZ = "CENTREZ";
-    private static final String TILTX = "TILTX";
-    private static final String TILTZ = "TILTZ";
-    private static final String ROTATIONDIR = "DIRECTION";
-    private static final String CALIBRATED = "CALIBRATED";
-
-    private static double centreX_;
-    private static double centreZ_;
-    private static double tiltX_;
-    private static double tiltZ_;
-    private static boolean calibrated_;
-    private static int rotationDir_;
-    private static Array2DRowRealMatrix mechanicalCentre;
-    private static String zStage = "";
-    private static String rStage = "";
+    /**
+     * Number of values stored per target in a sweep plan: (R, Z, X). Plans are
+     * 2D: they cannot be made or executed with the tilt compensation enabled.
+     */
+    public static final int SWEEP_STRIDE = 3;
+
+    /**
+     * Indices of the motion phases in {@link #getPhaseTimes()}
+     */
+    public static final int PHASE_R = 0;
+    public static final int PHASE_Z = 1;
+    public static final int PHASE_X = 2;
+    public static final int PHASE_TOTAL = 3;
+
+    /**
+     * Interval between two busy checks of a moving device in the asynchronous
+     * motions, in milliseconds
+     */
+    public static final long POLL_INTERVAL_MS = 5;
+
+    // Interval between two checks of the devices settling in the blocking
+    // motions, when no single device can be waited for. Each check is a round
+    // trip to the controller, which the other commands queue behind.
+    private static final long SETTLE_POLL_INTERVAL_MS = 10;
+
+    // Idle time after which the motion thread of a manager ends
+    private static final long MOTION_THREAD_KEEP_ALIVE_S = 10;
+    private static final CompletableFuture<Void> IDLE = CompletableFuture.completedFuture(null);
 
     private final Studio studio_;
     private final CMMCore core_;
+    private final RotationSettingsStore settings_;
+    private final StagePositionCache positions_;
+    private final MotionTelemetry telemetry_;
+    private final MotionProfileStore profiles_;
+    // Issues the asynchronous commands and polls the moving devices
+    private final ScheduledExecutorService motionScheduler_;
+    // Absolute target of the profiled moves in progress, to verify on arrival
+    private final Map<String, Double> targets_ = new ConcurrentHashMap<>();
+    // Target of the approach moves in progress, sent once the approach is over
+    private final Map<String, Double> approaches_ = new ConcurrentHashMap<>();
+    // Null when following the GUI drive selection and the default XY stage
+    private final RotationRig.Key rig_;
+    // Drives of a manager bound to given stages, null when following the GUI
+    // drive selection
+    private volatile String zStage_ = null;
+    private volatile String rStage_ = null;
+
+    private boolean parallelMotion_ = false;
+    private boolean overlapRotation_ = false;
+    private volatile CompensationTable table_ = null;
+    // Guarded by this
+    private Anchor anchor_ = null;
+    // Guarded by itself
+    private final long[] phaseNanos_ = new long[PHASE_TOTAL + 1];
+
+    // Last asynchronous motion of each axis, the next one starts after it
+    private CompletableFuture<Void> lastR_ = IDLE;
+    private CompletableFuture<Void> lastZ_ = IDLE;
+    private CompletableFuture<Void> lastX_ = IDLE;
 
     public OpticalRotation(Studio studio) {
         studio_ = studio;
         core_ = studio_.getCMMCore();
+        positions_ = StagePositionCache.get(studio_);
+        telemetry_ = MotionTelemetry.get(studio_);
+        profiles_ = MotionProfileStore.get(studio_);
+        motionScheduler_ = newMotionScheduler("Stage motion");
+        settings_ = RotationSettingsStore.get(studio_);
+        rig_ = null;
+        RotationSettings settings = settings_.getSettings();
 
-        StrVector zDrives = core_.getLoadedDevicesOfType(DeviceType.StageDevice);
-        boolean error = zDrives.isEmpty() || zDrives.size() < 2;
-        if (!error) {
-            zStage = zDrives.get(0);
-            rStage = zDrives.get(1);
+        // Default to the first loaded stages when no drive was selected yet
+        if (settings.getZStage().isEmpty() || settings.getRStage().isEmpty()) {
+            StrVector zDrives = core_.getLoadedDevicesOfType(DeviceType.StageDevice);
+            boolean error = zDrives.isEmpty() || zDrives.size() < 2;
+            if (!error) {
+                settings_.setDefaultStages(zDrives.get(0), zDrives.get(1));
+            }
         }
+    }
 
-        zStage = studio_.profile().getSettings(OpticalRotation.class).getString(CURRENTZDRIVE, zStage);
-        rStage = studio_.profile().getSettings(OpticalRotation.class).getString(CURRENTRDRIVE, rStage);
+    /**
+     * Create a rotation manager bound to the given stages, without looking up
+     * the loaded devices or the stored drive selection. The drive selection of
+     * the GUI is left as is; the calibration is shared with it.
+     * 
+     * @param studio
+     * @param zStageName
+     * @param rStageName
+     */
+    public OpticalRotation(Studio studio, String zStageName, String rStageName) {
+        studio_ = studio;
+        core_ = studio_.getCMMCore();
+        positions_ = StagePositionCache.get(studio_);
+        telemetry_ = MotionTelemetry.get(studio_);
+        profiles_ = MotionProfileStore.get(studio_);
+        motionScheduler_ = newMotionScheduler("Stage motion");
+        settings_ = RotationSettingsStore.get(studio_);
+        rig_ = null;
+        zStage_ = zStageName;
+        rStage_ = rStageName;
+    }
 
-        centreX_ = studio_.profile().getSettings(OpticalRotation.class).getDouble(CENTREX, 0.0);
-        centreZ_ = studio_.profile().getSettings(OpticalRotation.class).getDouble(CENTREZ, 0.0);
+    /**
+     * Create a rotation manager bound to the drives and calibration of a rig,
+     * see {@link RotationRigRegistry}
+     * 
+     * @param studio
+     * @param rig
+     */
+    public OpticalRotation(Studio studio, RotationRig.Key rig) {
+        this(studio, rig, newMotionScheduler("Stage motion"));
+    }
 
-        tiltZ_ = studio_.profile().getSettings(OpticalRotation.class).getDouble(TILTZ, 0.0);
-        tiltX_ = studio_.profile().getSettings(OpticalRotation.class).getDouble(TILTX, 0.0);
+    /**
+     * Create a rotation manager bound to a rig, issuing and polling its
+     * asynchronous motions on the given scheduler
+     */
+    OpticalRotation(Studio studio, RotationRig.Key rig, ScheduledExecutorService motionScheduler) {
+        studio_ = studio;
+        core_ = studio_.getCMMCore();
+        positions_ = StagePositionCache.get(studio_);
+        telemetry_ = MotionTelemetry.get(studio_);
+        profiles_ = MotionProfileStore.get(studio_);
+        motionScheduler_ = motionScheduler;
+        settings_ = RotationSettingsStore.get(studio_, rig);
+        rig_ = rig;
+    }
 
-        rotationDir_ = studio_.profile().getSettings(OpticalRotation.class).getInteger(ROTATIONDIR, 1);
-        calibrated_ = studio_.profile().getSettings(OpticalRotation.class).getBoolean(CALIBRATED, false);
+    /**
+     * @return a single thread scheduler whose thread ends when idle, so that
+     *         managers no longer used do not keep one
+     */
+    static ScheduledExecutorService newMotionScheduler(final String name) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setKeepAliveTime(MOTION_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        return scheduler;
     }
 
     public void registerCalibration(double centreZ, double centreX, int rotationDir, boolean calibrated) {
-        centreX_ = centreX;
-        centreZ_ = centreZ;
-        rotationDir_ = rotationDir;
-        calibrated_ = calibrated;
+        settings_.setCalibration(centreZ, centreX, rotationDir, calibrated);
+    }
 
-        studio_.profile().getSettings(OpticalRotation.class).putDouble(CENTREX, centreX);
-        studio_.profile().getSettings(OpticalRotation.class).putDouble(CENTREZ, centreZ);
-        studio_.profile().getSettings(OpticalRotation.class).putInteger(ROTATIONDIR, rotationDir);
-        studio_.profile().getSettings(OpticalRotation.class).putBoolean(CALIBRATED, calibrated);
+    /**
+     * @param centreZ
+     * @param centreX
+     * @param centreY     Y coordinate at which the ZX centre was measured
+     * @param rotationDir
+     * @param calibrated
+     */
+    public void registerCalibration(double centreZ, double centreX, double centreY, int rotationDir,
+            boolean calibrated) {
+        settings_.setCalibration(centreZ, centreX, centreY, rotationDir, calibrated);
     }
 
     public void registerTilt(double tiltZ, double tiltX) {
-        tiltX_ = tiltX;
-        tiltZ_ = tiltZ;
+        settings_.setTilt(tiltZ, tiltX);
+    }
+
+    /**
+     * Compensate the rotations around the tilted axis in 3D, moving Y as well,
+     * instead of rotating in the ZX plane only
+     * 
+     * @param tiltCompensation
+     */
+    public void setTiltCompensation(boolean tiltCompensation) {
+        settings_.setTiltCompensation(tiltCompensation);
+    }
+
+    public boolean getTiltCompensation() {
+        return settings_.getSettings().isTiltCompensated();
+    }
 
-        studio_.profile().getSettings(OpticalRotation.class).putDouble(TILTX, tiltX);
-        studio_.profile().getSettings(OpticalRotation.class).putDouble(TILTZ, tiltZ);
+    /**
+     * Get the current calibration, drives and tilt as one consistent snapshot
+     * 
+     * @return
+     */
+    public RotationSettings getSettings() {
+        return settings_.getSettings();
     }
 
     public double[] getOpticalCentre() {
-        return new double[] { centreZ_, centreX_ };
+        RotationSettings settings = settings_.getSettings();
+        return new double[] { settings.getCentreZ(), settings.getCentreX() };
     }
 
     public int getRotationDirection() {
-        return rotationDir_;
+        return settings_.getSettings().getRotationDirection();
     }
 
     public boolean getCalibrated() {
-        return calibrated_;
+        return settings_.getSettings().isCalibrated();
     }
 
     public double[] getCentre() {
-        return new double[] { centreZ_, centreX_ };
+        return getOpticalCentre();
     }
 
     public double[] getTilt() {
-        return new double[] { tiltZ_, tiltX_ };
+        RotationSettings settings = settings_.getSettings();
+        return new double[] { settings.getTiltZ(), settings.getTiltX() };
     }
 
-    private void translateRotationCompensation(double angleDeg) throws Exception {
-        OpticalRotation.this.translateRotationCompensation(angleDeg, getZXCoordinates(), false);
+    /**
+     * Anchored reference frame: the sample position at the zero angle, and the
+     * last commanded motor angle
+     */
+    private static final class Anchor {
+        // ZXY
+        final double[] origin;
+        final double zeroAngle;
+        final double angle;
+
+        Anchor(double[] origin, double zeroAngle, double angle) {
+            this.origin = origin;
+            this.zeroAngle = zeroAngle;
+            this.angle = angle;
+        }
+    }
+
+    /**
+     * Anchor the rotations at the current position and motor angle, see
+     * {@link #anchor(double[], double)}
+     * 
+     * @throws Exception
+     */
+    public void anchor() throws Exception {
+        anchor(getZXYCoordinates(), getRPosition());
+    }
+
+    /**
+     * Anchor the rotations to a fixed reference frame. Until the anchor is
+     * cleared, the motor angle is tracked in software, and every rotation
+     * commands absolute targets computed from the anchor instead of moving
+     * relatively to the measured positions: errors do not add up over the
+     * steps.
+     * 
+     * Moves made outside this rotation manager are not tracked; anchor again
+     * after re-centring the sample.
+     * 
+     * @param origin    ZXY position of the sample at zeroAngle
+     * @param zeroAngle motor angle of the origin, in degrees
+     */
+    public synchronized void anchor(double[] origin, double zeroAngle) {
+        anchor_ = new Anchor(new double[] { origin[0], origin[1], origin[2] }, zeroAngle, zeroAngle);
+    }
+
+    public synchronized void clearAnchor() {
+        anchor_ = null;
+    }
+
+    public synchronized boolean isAnchored() {
+        return anchor_ != null;
+    }
+
+    /**
+     * @return the motor angle commanded in the anchored frame, in degrees, or NaN
+     *         if not anchored
+     */
+    public synchronized double getAnchoredAngle() {
+        return anchor_ == null ? Double.NaN : anchor_.angle;
+    }
+
+    /**
+     * Record a new commanded motor angle in the anchored frame
+     * 
+     * @return the updated anchor, or null if not anchored
+     */
+    private synchronized Anchor advanceAnchor(double angleDeg, boolean relative) {
+        if (anchor_ == null) {
+            return null;
+        }
+        double angle = relative ? anchor_.angle + angleDeg : angleDeg;
+        anchor_ = new Anchor(anchor_.origin, anchor_.zeroAngle, angle);
+        return anchor_;
     }
 
-    private void translateRotationCompensation(double angleDeg, double[] origin, boolean relative) throws Exception {
-        double[] targetPosition = computeRotationCompensation(angleDeg, origin, relative);
-        moveZX(targetPosition, relative);
+    /**
+     * @return the absolute ZX (ZXY with the 3D compensation) target of the
+     *         anchored sample at the commanded angle of the anchor
+     */
+    private double[] computeAnchoredTarget(Anchor anchor) {
+        double angle = anchor.angle - anchor.zeroAngle;
+        if (settings_.getSettings().isTiltCompensated()) {
+            double[] target = new double[3];
+            computeRotationCompensation3D(angle, anchor.origin, false, target);
+            return target;
+        }
+        return computeRotationCompensation(angle, anchor.origin, false);
+    }
+
+    /**
+     * @return the ZX target of a rotation from the current position, or its ZXY
+     *         target with the 3D compensation
+     */
+    private double[] computeRotationTarget(double angleDeg) throws Exception {
+        if (settings_.getSettings().isTiltCompensated()) {
+            double[] target = new double[3];
+            computeRotationCompensation3D(angleDeg, getZXYCoordinates(), false, target);
+            return target;
+        }
+        return computeRotationCompensation(angleDeg, getZXCoordinates(), false);
+    }
+
+    /**
+     * @return the ZX target of the rotation of origin, or its ZXY target with
+     *         the 3D compensation and a ZXY origin
+     */
+    private double[] computeCompensatedTarget(double angleDeg, double[] origin) {
+        if (origin.length > 2 && settings_.getSettings().isTiltCompensated()) {
+            double[] target = new double[3];
+            computeRotationCompensation3D(angleDeg, origin, false, target);
+            return target;
+        }
+        return computeRotationCompensation(angleDeg, origin, false);
+    }
+
+    /**
+     * Sweep and path plans only hold ZX targets, and would ignore the Y
+     * correction of the 3D compensation
+     * 
+     * @param plans name of the plans, for the error message
+     */
+    private void checkPlanar(String plans) {
+        if (settings_.getSettings().isTiltCompensated()) {
+            throw new IllegalStateException(plans + " are 2D, disable the tilt compensation to use them");
+        }
     }
 
     private double[] computeRotationCompensation(double angleDeg, double[] origin, boolean relative) {
-        if (!calibrated_) {
+        double[] targetPosition = new double[2];
+        computeRotationCompensation(angleDeg, origin, relative, targetPosition);
+        return targetPosition;
+    }
+
+    /**
+     * Compute the ZX compensation of a rotation without allocating
+     * 
+     * @param angleDeg rotation angle in degrees
+     * @param origin   ZX position before the rotation
+     * @param relative if true, compute the displacement instead of the target
+     * @param out      array receiving the ZX result
+     */
+    public void computeRotationCompensation(double angleDeg, double[] origin, boolean relative, double[] out) {
+        // Calibration flag and compensation are read from the same snapshot
+        RotationSettings settings = settings_.getSettings();
+        if (!settings.isCalibrated()) {
             if (relative) {
-                return new double[] { 0.0, 0.0 };
+                out[0] = 0.0;
+                out[1] = 0.0;
             } else {
-                return origin;
+                out[0] = origin[0];
+                out[1] = origin[1];
             }
+            return;
         }
 
-        double radAngle = Math.toRadians(angleDeg);
-        radAngle *= rotationDir_;
-        mechanicalCentre = new Array2DRowRealMatrix(new double[] { centreZ_, centreX_ });
-        Array2DRowRealMatrix rotMat = new Array2DRowRealMatrix(new double[][] {
-                { Math.cos(radAngle), -Math.sin(radAngle) }, { Math.sin(radAngle), Math.cos(radAngle) } }, false);
-
-        Array2DRowRealMatrix opticalCentre = new Array2DRowRealMatrix(origin);
+        CompensationTable table = table_;
+        int index = table == null ? -1 : table.indexOf(angleDeg);
+        if (index >= 0) {
+            table.compute(settings.getCompensation(), index, origin, relative, out);
+        } else {
+            settings.getCompensation().compute(angleDeg, origin, relative, out);
+        }
+    }
 
-        Array2DRowRealMatrix target = opticalCentre.subtract(mechanicalCentre);
-        target = rotMat.multiply(target);
-        target = target.add(mechanicalCentre);
+    /**
+     * Compute the ZXY compensation of a rotation around the tilted axis without
+     * allocating. The tilt is ignored unless the tilt compensation is enabled.
+     * 
+     * @param angleDeg rotation angle in degrees
+     * @param origin   ZXY position before the rotation
+     * @param relative if true, compute the displacement instead of the target
+     * @param out      array receiving the ZXY result
+     */
+    public void computeRotationCompensation3D(double angleDeg, double[] origin, boolean relative, double[] out) {
+        RotationSettings settings = settings_.getSettings();
+        if (!settings.isCalibrated()) {
+            for (int i = 0; i < 3; i++) {
+                out[i] = relative ? 0.0 : origin[i];
+            }
+            return;
+        }
 
-        if (relative) {
-            target = target.subtract(opticalCentre);
+        CompensationTable table = table_;
+        int index = table == null ? -1 : table.indexOf(angleDeg);
+        if (index >= 0) {
+            table.compute3D(settings.getCompensation(), index, origin, relative, out);
+        } else {
+            settings.getCompensation().compute3D(angleDeg, origin, relative, out);
         }
+    }
 
-        double[] targetPosition = { target.getEntry(0, 0), target.getEntry(1, 0) };
-        return targetPosition;
+    /**
+     * Precompute the compensation of the multiples of a fixed angular step.
+     * Rotations by a multiple of the step then use table lookups; other angles
+     * are computed as usual. The table does not depend on the calibration and
+     * stays valid when it changes.
+     * 
+     * @param stepDeg step in degrees dividing 360, or 0 to disable the table
+     * @throws IllegalArgumentException if the step does not divide 360
+     */
+    public void setCompensationStep(double stepDeg) {
+        table_ = stepDeg == 0.0 ? null : new CompensationTable(stepDeg);
     }
 
-    public void moveZX(double[] position, boolean relative) throws Exception {
-        if (relative) {
-            core_.waitForDevice(zStage);
-            core_.setRelativePosition(zStage, position[0]);
-            core_.waitForDevice(zStage);
+    /**
+     * @return the step of the compensation table, 0 if disabled
+     */
+    public double getCompensationStep() {
+        CompensationTable table = table_;
+        return table == null ? 0.0 : table.getStep();
+    }
 
-            core_.waitForDevice(core_.getXYStageDevice());
-            core_.setRelativeXYPosition(position[1], 0.0);
-            core_.waitForDevice(core_.getXYStageDevice());
-        } else {
-            core_.waitForDevice(zStage);
-            core_.setPosition(zStage, position[0]);
-            core_.waitForDevice(zStage);
+    /**
+     * Get the compensation engine matching the current calibration
+     * 
+     * @return
+     */
+    public RotationCompensation getCompensation() {
+        return settings_.getSettings().getCompensation();
+    }
 
-            core_.waitForDevice(core_.getXYStageDevice());
-            core_.setXYPosition(position[1], core_.getYPosition());
-            core_.waitForDevice(core_.getXYStageDevice());
+    /**
+     * Issue the Z and X moves together and wait for both, instead of moving one
+     * axis after the other
+     * 
+     * @param parallel
+     */
+    public void setParallelMotion(boolean parallel) {
+        parallelMotion_ = parallel;
+    }
+
+    public boolean getParallelMotion() {
+        return parallelMotion_;
+    }
+
+    /**
+     * Issue the compensation moves while the rotation motor is still moving in
+     * {@link #rotate(double)}
+     * 
+     * @param overlap
+     */
+    public void setOverlapRotation(boolean overlap) {
+        overlapRotation_ = overlap;
+    }
+
+    public boolean getOverlapRotation() {
+        return overlapRotation_;
+    }
+
+    /**
+     * Get the duration of the last motion phases, in milliseconds, indexed by
+     * PHASE_R, PHASE_Z, PHASE_X and PHASE_TOTAL (last complete rotation). Each
+     * phase is measured from the start of the motion until its own device has
+     * settled; devices moving together are stamped separately, to within a
+     * few milliseconds, so the longest phase shows the axis limiting the
+     * motion.
+     * 
+     * @return
+     */
+    public double[] getPhaseTimes() {
+        double[] times = new double[phaseNanos_.length];
+        synchronized (phaseNanos_) {
+            for (int i = 0; i < times.length; i++) {
+                times[i] = phaseNanos_[i] / 1e6;
+            }
         }
+        return times;
     }
 
-    public void moveZ(double um, boolean relative) throws Exception {
-        core_.waitForDevice(zStage);
+    private void recordPhase(int phase, long nanos) {
+        synchronized (phaseNanos_) {
+            phaseNanos_[phase] = nanos;
+        }
+    }
 
-        if (relative) {
-            core_.setRelativePosition(zStage, um);
+    /**
+     * Move the Z and X stages
+     * 
+     * @param position ZX position; a third coordinate moves Y together with X
+     * @param relative
+     * @throws Exception
+     */
+    public void moveZX(double[] position, boolean relative) throws Exception {
+        long start = System.nanoTime();
+        if (parallelMotion_) {
+            long zIssued = startZ(position[0], relative);
+            long xIssued = startLateral(position, relative);
+            settle(start, new String[] { getZStage(), getXYStage() }, new int[] { PHASE_Z, PHASE_X },
+                    new long[] { zIssued, xIssued });
         } else {
-            core_.setPosition(zStage, um);
+            long issued = startZ(position[0], relative);
+            settle(getZStage(), PHASE_Z, start, issued);
+
+            start = System.nanoTime();
+            issued = startLateral(position, relative);
+            settle(getXYStage(), PHASE_X, start, issued);
         }
-        core_.waitForDevice(zStage);
+    }
+
+    public void moveZ(double um, boolean relative) throws Exception {
+        long start = System.nanoTime();
+        long issued = startZ(um, relative);
+        settle(getZStage(), PHASE_Z, start, issued);
     }
 
     public void rotate(double angleDeg) throws Exception {
@@ -188,23 +565,270 @@ public class OpticalRotation {
     }
 
     public void rotate(double angle, boolean radians) throws Exception {
-        rotateMotor(angle);
+        long start = System.nanoTime();
         if (radians) {
             angle = Math.toDegrees(angle);
         }
-        translateRotationCompensation(angle);
+
+        // Anchored rotations command absolute targets
+        Anchor anchor = advanceAnchor(angle, true);
+        double[] target = anchor == null ? computeRotationTarget(angle) : computeAnchoredTarget(anchor);
+        double rTarget = anchor == null ? angle : anchor.angle;
+
+        if (overlapRotation_) {
+            long rIssued = startR(rTarget, anchor == null);
+            long zIssued = startZ(target[0], false);
+            long xIssued = startLateral(target, false);
+            settle(start, new String[] { getRStage(), getZStage(), getXYStage() },
+                    new int[] { PHASE_R, PHASE_Z, PHASE_X }, new long[] { rIssued, zIssued, xIssued });
+        } else {
+            long rStart = System.nanoTime();
+            long rIssued = startR(rTarget, anchor == null);
+            settle(getRStage(), PHASE_R, rStart, rIssued);
+            moveZX(target, false);
+        }
+
+        long total = System.nanoTime() - start;
+        recordPhase(PHASE_TOTAL, total);
+        telemetry_.record(MotionTelemetry.ROTATION, MotionTelemetry.Metric.TOTAL, total);
     }
 
     public void rotateMotor(double angle) throws Exception {
-        core_.waitForDevice(rStage);
-        core_.setRelativePosition(rStage, angle);
-        core_.waitForDevice(rStage);
+        Anchor anchor = advanceAnchor(angle, true);
+        long start = System.nanoTime();
+        long issued = anchor == null ? startR(angle, true) : startR(anchor.angle, false);
+        settle(getRStage(), PHASE_R, start, issued);
     }
 
     public void rotateMotorAbsolute(double angle) throws Exception {
-        core_.waitForDevice(rStage);
-        core_.setPosition(rStage, angle);
-        core_.waitForDevice(rStage);
+        advanceAnchor(angle, false);
+        long start = System.nanoTime();
+        long issued = startR(angle, false);
+        settle(getRStage(), PHASE_R, start, issued);
+    }
+
+    private long startZ(double z, boolean relative) throws Exception {
+        long waitStart = System.nanoTime();
+        core_.waitForDevice(getZStage());
+        long issueStart = System.nanoTime();
+        issueZ(z, relative);
+        return telemetry_.recordIssue(getZStage(), waitStart, issueStart);
+    }
+
+    private void issueZ(double z, boolean relative) throws Exception {
+        issueAxis(getZStage(), z, relative);
+    }
+
+    private long startX(double x, boolean relative) throws Exception {
+        long waitStart = System.nanoTime();
+        core_.waitForDevice(getXYStage());
+        long issueStart = System.nanoTime();
+        issueX(x, relative);
+        return telemetry_.recordIssue(getXYStage(), waitStart, issueStart);
+    }
+
+    private void issueX(double x, boolean relative) throws Exception {
+        String stage = getXYStage();
+        if (relative) {
+            core_.setRelativeXYPosition(stage, x, 0.0);
+            positions_.commandedXYOffset(stage, x, 0.0);
+        } else {
+            double y = positions_.getXYPosition(stage)[1];
+            core_.setXYPosition(stage, x, y);
+            positions_.commandedXYPosition(stage, x, y);
+        }
+    }
+
+    /**
+     * Start the X move of a ZX position, or the XY move of a ZXY position
+     */
+    private long startLateral(double[] position, boolean relative) throws Exception {
+        if (position.length < 3) {
+            return startX(position[1], relative);
+        }
+        long waitStart = System.nanoTime();
+        core_.waitForDevice(getXYStage());
+        long issueStart = System.nanoTime();
+        issueXY(position[1], position[2], relative);
+        return telemetry_.recordIssue(getXYStage(), waitStart, issueStart);
+    }
+
+    /**
+     * Issue the X move of a ZX position, or the XY move of a ZXY position
+     */
+    private void issueLateral(double[] position, boolean relative) throws Exception {
+        if (position.length < 3) {
+            issueX(position[1], relative);
+        } else {
+            issueXY(position[1], position[2], relative);
+        }
+    }
+
+    private void issueXY(double x, double y, boolean relative) throws Exception {
+        String stage = getXYStage();
+        if (relative) {
+            core_.setRelativeXYPosition(stage, x, y);
+            positions_.commandedXYOffset(stage, x, y);
+        } else {
+            core_.setXYPosition(stage, x, y);
+            positions_.commandedXYPosition(stage, x, y);
+        }
+    }
+
+    private long startR(double angle, boolean relative) throws Exception {
+        long waitStart = System.nanoTime();
+        core_.waitForDevice(getRStage());
+        long issueStart = System.nanoTime();
+        issueR(angle, relative);
+        return telemetry_.recordIssue(getRStage(), waitStart, issueStart);
+    }
+
+    private void issueR(double angle, boolean relative) throws Exception {
+        issueAxis(getRStage(), angle, relative);
+    }
+
+    /**
+     * Move a single axis stage following its motion profile. Moves needing the
+     * target are made absolute. When an approach is needed, only the approach
+     * move is sent: the move to the target is sent by
+     * {@link #issueApproached(String)} once the device is idle.
+     */
+    private void issueAxis(String stage, double value, boolean relative) throws Exception {
+        MotionProfile profile = profiles_.getProfile(stage);
+        if (!profile.needsTarget()) {
+            targets_.remove(stage);
+            approaches_.remove(stage);
+            if (relative) {
+                core_.setRelativePosition(stage, value);
+                positions_.commandedOffset(stage, value);
+            } else {
+                core_.setPosition(stage, value);
+                positions_.commandedPosition(stage, value);
+            }
+            return;
+        }
+
+        double current = positions_.getPosition(stage);
+        double target = relative ? current + value : value;
+        double approach = profile.getApproachPosition(current, target);
+        if (profile.isVerified()) {
+            targets_.put(stage, target);
+        } else {
+            targets_.remove(stage);
+        }
+        if (Double.isNaN(approach)) {
+            approaches_.remove(stage);
+            core_.setPosition(stage, target);
+            positions_.commandedPosition(stage, target);
+        } else {
+            approaches_.put(stage, target);
+            core_.setPosition(stage, approach);
+            positions_.commandedPosition(stage, approach);
+        }
+    }
+
+    /**
+     * Send the move to the target of an approach in progress, if any
+     * 
+     * @return true if a move was sent
+     */
+    private boolean issueApproached(String stage) throws Exception {
+        Double target = approaches_.remove(stage);
+        if (target == null) {
+            return false;
+        }
+        core_.setPosition(stage, target);
+        positions_.commandedPosition(stage, target);
+        return true;
+    }
+
+    /**
+     * Check that a profiled move reached its target
+     * 
+     * @return true if the position is within tolerance, or there is nothing to
+     *         verify
+     */
+    private boolean verify(String device) throws Exception {
+        Double target = targets_.get(device);
+        if (target == null) {
+            return true;
+        }
+        double position = core_.getPosition(device);
+        if (Math.abs(position - target) > profiles_.getProfile(device).getTolerance()) {
+            return false;
+        }
+        targets_.remove(device);
+        return true;
+    }
+
+    private Exception verifyError(String device) {
+        Double target = targets_.remove(device);
+        positions_.invalidate(device);
+        return new Exception(String.format("%s did not reach %f within %s", device, target,
+                profiles_.getProfile(device)));
+    }
+
+    private void settle(String device, int phase, long start, long issued) throws Exception {
+        settle(start, new String[] { device }, new int[] { phase }, new long[] { issued });
+    }
+
+    /**
+     * Wait for the devices of a motion, and stamp the phase of each device as
+     * soon as it has settled: idle, through the settle delay and verified as set
+     * by its motion profile. When an approach move ends, the move to the target
+     * is sent and waited for in turn.
+     * 
+     * @param start   start of the motion
+     * @param devices
+     * @param phases  phase of each device
+     * @param issued  time at which the command of each device was issued
+     * @throws Exception
+     */
+    private void settle(long start, String[] devices, int[] phases, long[] issued) throws Exception {
+        int count = devices.length;
+        boolean[] idle = new boolean[count];
+        boolean[] settled = new boolean[count];
+        long[] settleEnd = new long[count];
+        long[] deadline = new long[count];
+        int pending = count;
+
+        while (pending > 0) {
+            for (int i = 0; i < count; i++) {
+                if (settled[i]) {
+                    continue;
+                }
+                String device = devices[i];
+                if (!idle[i]) {
+                    if (pending == 1) {
+                        core_.waitForDevice(device);
+                    } else if (core_.deviceBusy(device)) {
+                        continue;
+                    }
+                    if (issueApproached(device)) {
+                        continue;
+                    }
+                    MotionProfile profile = profiles_.getProfile(device);
+                    idle[i] = true;
+                    settleEnd[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(profile.getSettleMs());
+                    deadline[i] = settleEnd[i] + TimeUnit.MILLISECONDS.toNanos(profile.getVerifyTimeoutMs());
+                }
+                long now = System.nanoTime();
+                if (now - settleEnd[i] < 0) {
+                    continue;
+                }
+                if (verify(device)) {
+                    settled[i] = true;
+                    pending--;
+                    recordPhase(phases[i], now - start);
+                    telemetry_.record(device, MotionTelemetry.Metric.SETTLE, now - issued[i]);
+                } else if (now - deadline[i] >= 0) {
+                    throw verifyError(device);
+                }
+            }
+            if (pending > 0) {
+                Thread.sleep(SETTLE_POLL_INTERVAL_MS);
+            }
+        }
     }
 
     public void rotateAbsolute(double angleDeg) throws Exception {
@@ -212,22 +836,447 @@ public class OpticalRotation {
     }
 
     public void rotateAbsolute(double angle, boolean radians) throws Exception {
-        double currentAngle = getRPosition(radians);
+        double currentAngle;
+        synchronized (this) {
+            currentAngle = anchor_ == null ? Double.NaN : anchor_.angle;
+        }
+        if (Double.isNaN(currentAngle)) {
+            currentAngle = getRPosition(radians);
+        } else if (radians) {
+            currentAngle = Math.toRadians(currentAngle);
+        }
         rotate(angle - currentAngle, radians);
     }
 
+    /**
+     * Asynchronous version of {@link #moveZ(double, boolean)}. The move starts
+     * once the previous asynchronous Z move has settled.
+     * 
+     * @param um
+     * @param relative
+     * @return
+     */
+    public synchronized MotionFuture moveZAsync(final double um, final boolean relative) {
+        return startMotion(IDLE, null, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueZ(um, relative);
+            }
+        }, null, false, false);
+    }
+
+    /**
+     * Asynchronous version of {@link #moveZX(double[], boolean)}
+     * 
+     * @param position
+     * @param relative
+     * @return
+     */
+    public synchronized MotionFuture moveZXAsync(double[] position, final boolean relative) {
+        final double[] target = position.clone();
+        return startMotion(IDLE, null, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueZ(target[0], relative);
+            }
+        }, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueLateral(target, relative);
+            }
+        }, false, false);
+    }
+
+    /**
+     * Asynchronous version of {@link #rotateMotor(double)}
+     * 
+     * @param angle
+     * @return
+     */
+    public synchronized MotionFuture rotateMotorAsync(final double angle) {
+        final Anchor anchor = advanceAnchor(angle, true);
+        return startMotion(IDLE, new Command() {
+            @Override
+            public void issue() throws Exception {
+                if (anchor == null) {
+                    issueR(angle, true);
+                } else {
+                    issueR(anchor.angle, false);
+                }
+            }
+        }, null, null, false, false);
+    }
+
+    /**
+     * Asynchronous version of {@link #rotateMotorAbsolute(double)}
+     * 
+     * @param angle
+     * @return
+     */
+    public synchronized MotionFuture rotateMotorAbsoluteAsync(final double angle) {
+        advanceAnchor(angle, false);
+        return startMotion(IDLE, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueR(angle, false);
+            }
+        }, null, null, false, false);
+    }
+
+    /**
+     * Asynchronous version of {@link #rotate(double)}. The compensation target is
+     * computed once the previous asynchronous motions have settled, or right
+     * away from the anchor in the anchored mode.
+     * 
+     * @param angleDeg
+     * @return
+     */
+    public synchronized MotionFuture rotateAsync(final double angleDeg) {
+        Anchor anchor = advanceAnchor(angleDeg, true);
+        if (anchor != null) {
+            return startAnchoredRotation(anchor);
+        }
+        final CompletableFuture<double[]> target = afterMotions(new Supplier<double[]>() {
+            @Override
+            public double[] get() {
+                try {
+                    return computeRotationTarget(angleDeg);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+        return startRotation(target, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueR(angleDeg, true);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #rotateAbsolute(double)}
+     * 
+     * @param angleDeg
+     * @return
+     */
+    public synchronized MotionFuture rotateAbsoluteAsync(final double angleDeg) {
+        Anchor anchor = advanceAnchor(angleDeg, false);
+        if (anchor != null) {
+            return startAnchoredRotation(anchor);
+        }
+        // The motor is moved to angleDeg, the compensation uses the actual delta
+        final CompletableFuture<double[]> target = afterMotions(new Supplier<double[]>() {
+            @Override
+            public double[] get() {
+                try {
+                    double angle = angleDeg - getRPosition();
+                    return computeRotationTarget(angle);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+        return startRotation(target, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueR(angleDeg, false);
+            }
+        });
+    }
+
+    private MotionFuture startAnchoredRotation(final Anchor anchor) {
+        return startRotation(CompletableFuture.completedFuture(computeAnchoredTarget(anchor)), new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueR(anchor.angle, false);
+            }
+        });
+    }
+
+    private MotionFuture startRotation(final CompletableFuture<double[]> target, Command rotation) {
+        final long start = System.nanoTime();
+        MotionFuture motion = startMotion(target, rotation, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueZ(target.join()[0], false);
+            }
+        }, new Command() {
+            @Override
+            public void issue() throws Exception {
+                issueLateral(target.join(), false);
+            }
+        }, !overlapRotation_, false);
+        // Measured from the request, including the wait for the previous motions
+        motion.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                if (error == null) {
+                    telemetry_.record(MotionTelemetry.ROTATION, MotionTelemetry.Metric.TOTAL,
+                            System.nanoTime() - start);
+                }
+            }
+        });
+        return motion;
+    }
+
+    /**
+     * A stage command, issued without waiting for the device
+     */
+    interface Command {
+        void issue() throws Exception;
+    }
+
+    /**
+     * Issue arbitrary commands on the stages of this manager, each after the
+     * previous asynchronous motion of its axis. The motion completes when the
+     * devices are no longer busy.
+     * 
+     * @param r command on the R stage, or null
+     * @param z command on the Z stage, or null
+     * @param x command on the XY stage, or null
+     * @return
+     */
+    synchronized MotionFuture startCommands(Command r, Command z, Command x) {
+        return startMotion(IDLE, r, z, x, false, false);
+    }
+
+    /**
+     * Run a task on the motion thread right away, without waiting for the
+     * pending motions
+     * 
+     * @param task
+     * @return
+     */
+    CompletableFuture<Void> runNow(final Command task) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        motionScheduler_.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.issue();
+                    result.complete(null);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Compute a value on the motion thread once all previous asynchronous
+     * motions have settled, failed or been cancelled
+     */
+    synchronized <T> CompletableFuture<T> afterMotions(final Supplier<T> supplier) {
+        return after(ordered(lastR_), ordered(lastZ_), ordered(lastX_)).thenApplyAsync(
+                new Function<Void, T>() {
+                    @Override
+                    public T apply(Void value) {
+                        return supplier.get();
+                    }
+                }, motionScheduler_);
+    }
+
+    /**
+     * Chain the axis commands of a motion; each axis also waits for its previous
+     * asynchronous motion
+     * 
+     * @param prepare  completes before any command is issued
+     * @param r        rotation command, null if R does not move
+     * @param z        Z command, null if Z does not move
+     * @param x        X command, null if X does not move
+     * @param zxAfterR issue Z and X once R has settled
+     * @param rAfterZX issue R once Z and X have settled
+     * @return
+     */
+    private MotionFuture startMotion(CompletableFuture<?> prepare, Command r, Command z, Command x, boolean zxAfterR,
+            boolean rAfterZX) {
+        MotionFuture.Axis rAxis = null;
+        MotionFuture.Axis zAxis = null;
+        MotionFuture.Axis xAxis = null;
+
+        if (r != null && !rAfterZX) {
+            rAxis = startAxis(getRStage(), after(prepare, ordered(lastR_)), r);
+        }
+        CompletableFuture<Void> zxReady = zxAfterR ? after(prepare, rAxis) : after(prepare);
+        if (z != null) {
+            zAxis = startAxis(getZStage(), after(zxReady, ordered(lastZ_)), z);
+        }
+        if (x != null) {
+            CompletableFuture<Void> xReady = parallelMotion_ ? zxReady : after(zxReady, zAxis);
+            xAxis = startAxis(getXYStage(), after(xReady, ordered(lastX_)), x);
+        }
+        if (r != null && rAfterZX) {
+            rAxis = startAxis(getRStage(), after(prepare, ordered(lastR_), zAxis, xAxis), r);
+        }
+
+        lastR_ = rAxis == null ? lastR_ : rAxis;
+        lastZ_ = zAxis == null ? lastZ_ : zAxis;
+        lastX_ = xAxis == null ? lastX_ : xAxis;
+
+        return new MotionFuture(core_, new MotionFuture.Axis[] { rAxis, zAxis, xAxis },
+                new String[] { getRStage(), getZStage(), getXYStage() });
+    }
+
+    /**
+     * Issue a command on the motion thread once ready completes, and complete
+     * the returned future when the device is no longer busy
+     */
+    private MotionFuture.Axis startAxis(final String device, CompletableFuture<Void> ready, final Command command) {
+        final long requested = System.nanoTime();
+        final MotionFuture.Axis axis = new MotionFuture.Axis();
+        axis.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                if (axis.isCancelled()) {
+                    // Stopped somewhere before the commanded target
+                    positions_.invalidate(device);
+                }
+            }
+        });
+        ready.whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                if (axis.isDone()) {
+                    return;
+                }
+                if (error != null) {
+                    axis.completeExceptionally(error);
+                    return;
+                }
+                long issued;
+                try {
+                    long issueStart = System.nanoTime();
+                    command.issue();
+                    axis.setIssued();
+                    issued = telemetry_.recordIssue(device, requested, issueStart);
+                    if (axis.isCancelled()) {
+                        // Cancelled while the command was sent
+                        core_.stop(device);
+                        return;
+                    }
+                } catch (Exception e) {
+                    axis.completeExceptionally(e);
+                    return;
+                }
+                poll(device, axis, issued);
+            }
+        }, motionScheduler_);
+        return axis;
+    }
+
+    /**
+     * Complete the axis once the device is idle, then settled and verified as
+     * set by its motion profile; the settle time is known within the poll
+     * interval. When an approach move ends, the move to the target is sent and
+     * polled in turn.
+     */
+    private void poll(final String device, final CompletableFuture<Void> axis, final long issued) {
+        if (axis.isDone()) {
+            return;
+        }
+        try {
+            if (!core_.deviceBusy(device) && !issueApproached(device)) {
+                MotionProfile profile = profiles_.getProfile(device);
+                long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(profile.getSettleMs() + profile.getVerifyTimeoutMs());
+                pollTarget(device, axis, issued, deadline, profile.getSettleMs());
+                return;
+            }
+        } catch (Exception e) {
+            axis.completeExceptionally(e);
+            return;
+        }
+        motionScheduler_.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll(device, axis, issued);
+            }
+        }, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Complete the axis once the idle device is verified, checking again after
+     * the given delay otherwise
+     */
+    private void pollTarget(final String device, final CompletableFuture<Void> axis, final long issued,
+            final long deadline, long delayMs) {
+        if (axis.isDone()) {
+            return;
+        }
+        if (delayMs <= 0) {
+            try {
+                if (verify(device)) {
+                    telemetry_.record(device, MotionTelemetry.Metric.SETTLE, System.nanoTime() - issued);
+                    axis.complete(null);
+                    return;
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    axis.completeExceptionally(verifyError(device));
+                    return;
+                }
+            } catch (Exception e) {
+                axis.completeExceptionally(e);
+                return;
+            }
+            delayMs = POLL_INTERVAL_MS;
+        }
+        motionScheduler_.schedule(new Runnable() {
+            @Override
+            public void run() {
+                pollTarget(device, axis, issued, deadline, 0);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a future completing with the given one, whatever its outcome
+     */
+    private static CompletableFuture<Void> ordered(CompletableFuture<Void> previous) {
+        return previous.handle(new BiFunction<Void, Throwable, Void>() {
+            @Override
+            public Void apply(Void value, Throwable error) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return a future completing when all the non-null stages complete
+     */
+    private static CompletableFuture<Void> after(CompletableFuture<?>... stages) {
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        for (CompletableFuture<?> stage : stages) {
+            if (stage != null) {
+                pending.add(stage);
+            }
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]));
+    }
+
     public double[] getZXCoordinates() throws Exception {
-        double x = core_.getXPosition();
+        double x = positions_.getXYPosition(getXYStage())[0];
         double z = getZPosition();
         return new double[] { z, x };
     }
 
+    /**
+     * @return the ZXY position of the stages
+     * @throws Exception
+     */
+    public double[] getZXYCoordinates() throws Exception {
+        double[] xy = positions_.getXYPosition(getXYStage());
+        double z = getZPosition();
+        return new double[] { z, xy[0], xy[1] };
+    }
+
     public double getRPosition() throws Exception {
         return getRPosition(false);
     }
 
     public double getRPosition(boolean radians) throws Exception {
-        double angle = core_.getPosition(rStage);
+        double angle = positions_.getPosition(getRStage());
         if (radians) {
             angle = Math.toRadians(angle);
         }
@@ -235,25 +1284,194 @@ public class OpticalRotation {
     }
 
     public double getZPosition() throws Exception {
-        return core_.getPosition(zStage);
+        return positions_.getPosition(getZStage());
+    }
+
+    /**
+     * Get the cache serving the stage positions. Positions are read from the
+     * core unless a maximum age is set, see
+     * {@link StagePositionCache#setMaxAge(long)}
+     * 
+     * @return
+     */
+    public StagePositionCache getPositionCache() {
+        return positions_;
+    }
+
+    /**
+     * Get the motion profiles applied to the stages: the Z and rotation moves
+     * follow the approach and verification rules, the settle delay applies to
+     * all the stages
+     * 
+     * @return
+     */
+    public MotionProfileStore getMotionProfiles() {
+        return profiles_;
+    }
+
+    /**
+     * @return the XY stage of the rig, or the default XY stage
+     */
+    public String getXYStage() {
+        return rig_ == null ? core_.getXYStageDevice() : rig_.getXYStage();
     }
 
     public String getZStage() {
-        return zStage;
+        String stage = zStage_;
+        return stage == null ? settings_.getSettings().getZStage() : stage;
     }
 
     public String getRStage() {
-        return rStage;
+        String stage = rStage_;
+        return stage == null ? settings_.getSettings().getRStage() : stage;
     }
 
+    /**
+     * Select the Z drive: the drive of this manager if it was bound to given
+     * stages, the GUI selection otherwise
+     * 
+     * @param stage
+     */
     public void setZStage(String stage) {
-        zStage = stage;
-        studio_.profile().getSettings(OpticalRotation.class).putString(CURRENTZDRIVE, zStage);
+        checkSelectable();
+        if (zStage_ != null) {
+            zStage_ = stage;
+        } else {
+            settings_.setZStage(stage);
+        }
     }
 
+    /**
+     * Select the rotation drive: the drive of this manager if it was bound to
+     * given stages, the GUI selection otherwise
+     * 
+     * @param stage
+     */
     public void setRStage(String stage) {
-        rStage = stage;
-        studio_.profile().getSettings(OpticalRotation.class).putString(CURRENTRDRIVE, rStage);
+        checkSelectable();
+        if (rStage_ != null) {
+            rStage_ = stage;
+        } else {
+            settings_.setRStage(stage);
+        }
+    }
+
+    private void checkSelectable() {
+        if (rig_ != null) {
+            throw new IllegalStateException("The drives of rig " + rig_ + " cannot be changed");
+        }
+    }
+
+    /**
+     * Plan a rotation sweep starting from the current position, or from the
+     * anchor in the anchored mode
+     * 
+     * @param startDeg absolute motor angle of the first target
+     * @param stepDeg  angle increment between targets
+     * @param count    number of targets
+     * @return packed (R, Z, X) absolute targets, see {@link #SWEEP_STRIDE}
+     * @throws IllegalStateException if the tilt compensation is enabled
+     * @throws Exception
+     */
+    public double[] planSweep(double startDeg, double stepDeg, int count) throws Exception {
+        synchronized (this) {
+            if (anchor_ != null) {
+                return planSweep(startDeg, stepDeg, count, anchor_.origin, anchor_.zeroAngle);
+            }
+        }
+        return planSweep(startDeg, stepDeg, count, getZXCoordinates(), getRPosition());
+    }
+
+    /**
+     * Plan a rotation sweep for the sample located at origin when the motor is
+     * at originAngle
+     * 
+     * @param startDeg    absolute motor angle of the first target
+     * @param stepDeg     angle increment between targets
+     * @param count       number of targets
+     * @param origin      ZX position of the sample at originAngle
+     * @param originAngle motor angle corresponding to origin
+     * @return packed (R, Z, X) absolute targets, see {@link #SWEEP_STRIDE}
+     * @throws IllegalStateException if the tilt compensation is enabled
+     */
+    public double[] planSweep(double startDeg, double stepDeg, int count, double[] origin, double originAngle) {
+        checkPlanar("Sweep plans");
+        double[] targets = new double[count * SWEEP_STRIDE];
+        double[] zx = new double[2];
+
+        for (int i = 0; i < count; i++) {
+            double angle = startDeg + i * stepDeg;
+            computeRotationCompensation(angle - originAngle, origin, false, zx);
+
+            int offset = i * SWEEP_STRIDE;
+            targets[offset] = angle;
+            targets[offset + 1] = zx[0];
+            targets[offset + 2] = zx[1];
+        }
+        return targets;
+    }
+
+    /**
+     * Check that all targets of a sweep plan lie within the given stage limits
+     * 
+     * @param targets packed (R, Z, X) targets
+     * @param zMin
+     * @param zMax
+     * @param xMin
+     * @param xMax
+     * @return the index of the first target out of bounds, or -1 if all are valid
+     */
+    public static int checkSweepLimits(double[] targets, double zMin, double zMax, double xMin, double xMax) {
+        for (int offset = 0; offset < targets.length; offset += SWEEP_STRIDE) {
+            double z = targets[offset + 1];
+            double x = targets[offset + 2];
+            if (!(z >= zMin && z <= zMax && x >= xMin && x <= xMax)) {
+                return offset / SWEEP_STRIDE;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move the stages through all the targets of a sweep plan
+     * 
+     * @param targets  packed (R, Z, X) targets, as returned by planSweep
+     * @param listener called once each target is reached, may be null
+     * @throws IllegalStateException if the tilt compensation is enabled
+     * @throws Exception
+     */
+    public void executeSweep(double[] targets, SweepListener listener) throws Exception {
+        checkPlanar("Sweep plans");
+        double[] zx = new double[2];
+        for (int offset = 0; offset < targets.length; offset += SWEEP_STRIDE) {
+            zx[0] = targets[offset + 1];
+            zx[1] = targets[offset + 2];
+
+            rotateMotorAbsolute(targets[offset]);
+            moveZX(zx, false);
+
+            if (listener != null) {
+                listener.targetReached(offset / SWEEP_STRIDE, targets[offset], zx[0], zx[1]);
+            }
+        }
+    }
+
+    /**
+     * Callback for the execution of sweep plans
+     */
+    public interface SweepListener {
+
+        /**
+         * Called when the stages have settled on a target. Throwing aborts the
+         * sweep.
+         * 
+         * @param index    index of the target in the plan
+         * @param angleDeg motor angle
+         * @param z
+         * @param x
+         * @throws Exception
+         */
+        void targetReached(int index, double angleDeg, double z, double x) throws Exception;
     }
 
     public PolarSystem newPolarSystem() throws Exception {
@@ -264,11 +1482,37 @@ public class OpticalRotation {
         return new OpticalRotation.PolarSystem(this, rotationCentre);
     }
 
+    /**
+     * Polar coordinates around a fixed centre. Rotations keep the offset of the
+     * stage from the centre.
+     *
+     * In the anchored mode (see {@link OpticalRotation#anchor()}), the rotations
+     * go to absolute targets computed from the centre, the anchored angle and
+     * the commanded offset, so that successive moves do not accumulate errors.
+     * Otherwise, the angle is read from the rotation stage and the compensation
+     * is applied as a relative move, as for
+     * {@link OpticalRotation#rotate(double)}.
+     *
+     * With the tilt compensation enabled, the moves also correct Y; the paths
+     * are 2D like the sweep plans.
+     *
+     * All angles are relative to the zero angle, the motor angle when the system
+     * is created. This differs from the first versions of this class, which were
+     * only right for a zero angle of 0 and for a single rotation:
+     * moveAbsolute rotated the centre by the absolute motor angle, and
+     * rotateRelative moved the stage by the displacement of the centre from the
+     * zero angle instead of from the current angle.
+     */
     public class PolarSystem {
 
         private final OpticalRotation rotationManager;
+        // ZXY centre
         private final double[] rotationCentre;
         private final double zeroAngle;
+        // Commanded ZX offset of the stage from the rotated centre
+        private final double[] centreOffset;
+        // Last angle commanded through this system, when not anchored
+        private double localAngle = 0.0;
 
         /**
          * Create a manager to move the stage in a polar system of coordinates centred
@@ -279,22 +1523,287 @@ public class OpticalRotation {
          */
         public PolarSystem(OpticalRotation rotationManager) throws Exception {
             this.rotationManager = rotationManager;
-            this.rotationCentre = rotationManager.getZXCoordinates();
+            this.rotationCentre = rotationManager.getZXYCoordinates();
             this.zeroAngle = rotationManager.getRPosition();
+            this.centreOffset = new double[2];
         }
 
+        /**
+         * Create a manager to move the stage in a polar system of coordinates centred
+         * around the given position; the current offset of the stage from the
+         * centre is kept by the rotations
+         * 
+         * @param rotationManager
+         * @param rotationCentre  ZX centre, or ZXY centre; the Y of a ZX centre is
+         *                        the current Y
+         * @throws Exception
+         */
         public PolarSystem(OpticalRotation rotationManager, double[] rotationCentre) throws Exception {
             this.rotationManager = rotationManager;
-            this.rotationCentre = rotationCentre;
             this.zeroAngle = rotationManager.getRPosition();
+            double[] position = rotationManager.getZXYCoordinates();
+            this.rotationCentre = new double[] { rotationCentre[0], rotationCentre[1],
+                    rotationCentre.length > 2 ? rotationCentre[2] : position[2] };
+            this.centreOffset = new double[] { position[0] - rotationCentre[0], position[1] - rotationCentre[1] };
         }
 
+        /**
+         * Move the stage to polar coordinates
+         * 
+         * @param radius   Z offset from the rotated centre
+         * @param angleDeg angle relative to the zero angle, for the compensation as
+         *                 for the motor
+         * @throws Exception
+         */
         public void moveAbsolute(double radius, double angleDeg) throws Exception {
-            angleDeg = zeroAngle + angleDeg;
-            double[] target = rotationManager.computeRotationCompensation(angleDeg, rotationCentre, false);
-            target[0] += radius;
-            rotationManager.moveZX(target, false);
-            rotationManager.rotateMotorAbsolute(angleDeg);
+            setTarget(radius, angleDeg);
+            rotationManager.moveZX(computeTarget(angleDeg), false);
+            rotationManager.rotateMotorAbsolute(zeroAngle + angleDeg);
+        }
+
+        private void setTarget(double radius, double angleDeg) {
+            localAngle = angleDeg;
+            centreOffset[0] = radius;
+            centreOffset[1] = 0.0;
+        }
+
+        /**
+         * @return the ZX target (ZXY with the 3D compensation) at the given angle,
+         *         with the commanded offset
+         */
+        private double[] computeTarget(double angleDeg) {
+            double[] target = rotationManager.computeCompensatedTarget(angleDeg, rotationCentre);
+            target[0] += centreOffset[0];
+            target[1] += centreOffset[1];
+            return target;
+        }
+
+        /**
+         * @return the anchored angle in the anchored mode, the measured one
+         *         otherwise, relative to the zero angle
+         */
+        private double getCurrentAngle() throws Exception {
+            return rotationManager.isAnchored() ? getCommandedAngle() : getLocalAngle();
+        }
+
+        /**
+         * Asynchronous version of {@link #moveAbsolute(double, double)}
+         * 
+         * @param radius
+         * @param angleDeg
+         * @return
+         */
+        public MotionFuture moveAbsoluteAsync(double radius, double angleDeg) {
+            final double angle = zeroAngle + angleDeg;
+            setTarget(radius, angleDeg);
+            final double[] target = computeTarget(angleDeg);
+
+            synchronized (rotationManager) {
+                rotationManager.advanceAnchor(angle, false);
+                return rotationManager.startMotion(IDLE, new Command() {
+                    @Override
+                    public void issue() throws Exception {
+                        rotationManager.issueR(angle, false);
+                    }
+                }, new Command() {
+                    @Override
+                    public void issue() throws Exception {
+                        rotationManager.issueZ(target[0], false);
+                    }
+                }, new Command() {
+                    @Override
+                    public void issue() throws Exception {
+                        rotationManager.issueLateral(target, false);
+                    }
+                }, false, true);
+            }
+        }
+
+        /**
+         * Order polar waypoints to limit the motor travel from the commanded
+         * position: the rotation sweeps the angles once, starting from the nearer
+         * end, and the radii of a same angle are swept in alternate directions
+         * 
+         * @param radii
+         * @param anglesDeg angles relative to the zero angle
+         * @return the indices of the waypoints in visiting order
+         */
+        public int[] orderPath(final double[] radii, final double[] anglesDeg) {
+            int count = radii.length;
+            if (anglesDeg.length != count) {
+                throw new IllegalArgumentException("There must be as many radii as angles");
+            }
+            Integer[] sorted = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int order = Double.compare(anglesDeg[a], anglesDeg[b]);
+                    return order != 0 ? order : Double.compare(radii[a], radii[b]);
+                }
+            });
+
+            int[] order = new int[count];
+            if (count == 0) {
+                return order;
+            }
+            double angle = getCommandedAngle();
+            boolean descending = Math.abs(angle - anglesDeg[sorted[count - 1]]) < Math
+                    .abs(angle - anglesDeg[sorted[0]]);
+            double lastRadius = centreOffset[0];
+            int next = 0;
+            for (int group = 0; group < count;) {
+                // Waypoints sharing an angle, sorted by radius
+                int end = group + 1;
+                while (end < count && anglesDeg[sorted[end]] == anglesDeg[sorted[group]]) {
+                    end++;
+                }
+                int first = descending ? count - end : group;
+                int last = descending ? count - 1 - group : end - 1;
+                boolean inward = Math.abs(lastRadius - radii[sorted[last]]) < Math
+                        .abs(lastRadius - radii[sorted[first]]);
+                for (int i = 0; i < end - group; i++) {
+                    order[next++] = sorted[inward ? last - i : first + i];
+                }
+                lastRadius = radii[order[next - 1]];
+                group = end;
+            }
+            return order;
+        }
+
+        /**
+         * Compute the stage targets of polar waypoints
+         * 
+         * @param radii
+         * @param anglesDeg angles relative to the zero angle
+         * @param order     visiting order, see {@link #orderPath(double[], double[])},
+         *                  null to keep the given order
+         * @return packed (R, Z, X) absolute targets in visiting order, see
+         *         {@link #SWEEP_STRIDE}
+         * @throws IllegalStateException if the tilt compensation is enabled
+         */
+        public double[] planPath(double[] radii, double[] anglesDeg, int[] order) {
+            rotationManager.checkPlanar("Polar paths");
+            int count = order == null ? radii.length : order.length;
+            double[] targets = new double[count * SWEEP_STRIDE];
+            double[] origin = rotationCentre.clone();
+            double[] zx = new double[2];
+
+            for (int i = 0; i < count; i++) {
+                int waypoint = order == null ? i : order[i];
+                rotationManager.computeRotationCompensation(anglesDeg[waypoint], origin, false, zx);
+
+                int offset = i * SWEEP_STRIDE;
+                targets[offset] = zeroAngle + anglesDeg[waypoint];
+                targets[offset + 1] = zx[0] + radii[waypoint];
+                targets[offset + 2] = zx[1];
+            }
+            return targets;
+        }
+
+        /**
+         * Move the stages through the targets of a path plan. The moves to each
+         * target are queued while the previous one is reached, and issued as soon
+         * as it has settled and the listener has returned.
+         * 
+         * @param targets  packed (R, Z, X) targets, as returned by planPath
+         * @param order    visiting order used for the plan, to report the waypoint
+         *                 indices to the listener, may be null
+         * @param listener called once each target is reached, may be null
+         * @throws IllegalStateException if the tilt compensation is enabled
+         * @throws Exception
+         */
+        public void executePath(double[] targets, int[] order, SweepListener listener) throws Exception {
+            rotationManager.checkPlanar("Polar paths");
+            int count = targets.length / SWEEP_STRIDE;
+            CompletableFuture<Void> released = IDLE;
+            MotionFuture current = count == 0 ? null : startPathTarget(targets, 0, released);
+
+            for (int i = 0; i < count; i++) {
+                MotionFuture next = null;
+                // The next target fails without moving if this one fails
+                CompletableFuture<Void> reached = current;
+                if (listener != null) {
+                    released = new CompletableFuture<>();
+                    reached = released;
+                }
+                if (i + 1 < count) {
+                    next = startPathTarget(targets, i + 1, reached);
+                }
+
+                try {
+                    current.join();
+                    int offset = i * SWEEP_STRIDE;
+                    setTarget(0.0, targets[offset] - zeroAngle);
+                    double[] centre = computeTarget(localAngle);
+                    centreOffset[0] = targets[offset + 1] - centre[0];
+                    centreOffset[1] = targets[offset + 2] - centre[1];
+                    if (listener != null) {
+                        listener.targetReached(order == null ? i : order[i], targets[offset], targets[offset + 1],
+                                targets[offset + 2]);
+                        released.complete(null);
+                    }
+                } catch (Exception e) {
+                    if (listener != null) {
+                        released.completeExceptionally(e);
+                    }
+                    if (e instanceof CompletionException && e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+                current = next;
+            }
+        }
+
+        /**
+         * Move the stages through polar waypoints, in the order limiting the motor
+         * travel
+         * 
+         * @param radii
+         * @param anglesDeg angles relative to the zero angle
+         * @param listener  called once each waypoint is reached, with its index in
+         *                  the given arrays, may be null
+         * @throws IllegalStateException if the tilt compensation is enabled
+         * @throws Exception
+         */
+        public void followPath(double[] radii, double[] anglesDeg, SweepListener listener) throws Exception {
+            rotationManager.checkPlanar("Polar paths");
+            int[] order = orderPath(radii, anglesDeg);
+            executePath(planPath(radii, anglesDeg, order), order, listener);
+        }
+
+        /**
+         * Queue the absolute moves to a target of a path plan, issued once ready
+         * completes
+         */
+        private MotionFuture startPathTarget(double[] targets, int index, CompletableFuture<?> ready) {
+            int offset = index * SWEEP_STRIDE;
+            final double angle = targets[offset];
+            final double z = targets[offset + 1];
+            final double x = targets[offset + 2];
+
+            synchronized (rotationManager) {
+                rotationManager.advanceAnchor(angle, false);
+                return rotationManager.startMotion(ready, new Command() {
+                    @Override
+                    public void issue() throws Exception {
+                        rotationManager.issueR(angle, false);
+                    }
+                }, new Command() {
+                    @Override
+                    public void issue() throws Exception {
+                        rotationManager.issueZ(z, false);
+                    }
+                }, new Command() {
+                    @Override
+                    public void issue() throws Exception {
+                        rotationManager.issueX(x, false);
+                    }
+                }, !rotationManager.getOverlapRotation(), false);
+            }
         }
 
         public double getLocalAngle() throws Exception {
@@ -302,12 +1811,32 @@ public class OpticalRotation {
         }
 
         /**
-         * Move the stage to the centre of the polar system
+         * @return the anchored angle in the anchored mode, the last angle
+         *         commanded through this system otherwise, relative to the zero
+         *         angle
+         */
+        public double getCommandedAngle() {
+            double anchored = rotationManager.getAnchoredAngle();
+            return Double.isNaN(anchored) ? localAngle : anchored - zeroAngle;
+        }
+
+        /**
+         * @return the commanded radius: the Z offset of the stage from the
+         *         rotated centre
+         */
+        public double getCommandedRadius() {
+            return centreOffset[0];
+        }
+
+        /**
+         * Move the stage to the centre of the polar system, at the current angle
          * 
          * @throws Exception
          */
         public void centreStage() throws Exception {
-            rotationManager.translateRotationCompensation(getLocalAngle(), rotationCentre, false);
+            centreOffset[0] = 0.0;
+            centreOffset[1] = 0.0;
+            rotationManager.moveZX(computeTarget(getCurrentAngle()), false);
         }
 
         /**
@@ -331,7 +1860,7 @@ public class OpticalRotation {
          * @throws Exception
          */
         public double[] getCentreZX() throws Exception {
-            return rotationManager.computeRotationCompensation(getLocalAngle(), rotationCentre, false);
+            return Arrays.copyOf(rotationManager.computeCompensatedTarget(getLocalAngle(), rotationCentre), 2);
         }
 
         /**
@@ -341,12 +1870,37 @@ public class OpticalRotation {
          * @throws Exception
          */
         public void rotateAbsolute(double angleDeg) throws Exception {
-            rotateRelative(angleDeg - getLocalAngle());
+            if (rotationManager.isAnchored()) {
+                localAngle = angleDeg;
+                rotationManager.rotateMotorAbsolute(zeroAngle + angleDeg);
+                rotationManager.moveZX(computeTarget(angleDeg), false);
+            } else {
+                rotateRelative(angleDeg - getLocalAngle());
+            }
         }
 
+        /**
+         * Rotate the stage by a given angle around the centre of the polar
+         * system, keeping the offset of the stage from the centre. Outside the
+         * anchored mode, the stage moves by the displacement of the centre
+         * between the measured angles before and after the rotation.
+         * 
+         * @param angleDeg
+         * @throws Exception
+         */
         public void rotateRelative(double angleDeg) throws Exception {
+            if (rotationManager.isAnchored()) {
+                rotateAbsolute(getCommandedAngle() + angleDeg);
+                return;
+            }
+            double[] before = rotationManager.computeCompensatedTarget(getLocalAngle(), rotationCentre);
             rotationManager.rotateMotor(angleDeg);
-            rotationManager.translateRotationCompensation(getLocalAngle(), rotationCentre, true);
+            localAngle = getLocalAngle();
+            double[] after = rotationManager.computeCompensatedTarget(localAngle, rotationCentre);
+            for (int i = 0; i < after.length; i++) {
+                after[i] -= before[i];
+            }
+            rotationManager.moveZX(after, true);
         }
 
     }
@@ -0,0 +1,210 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+/**
+ * Off-axis rotation compensation in the ZX plane, computed on primitive doubles.
+ *
+ * The computation matches the former matrix implementation term by term, but
+ * writes into caller-supplied arrays so that repeated calls do not allocate.
+ * Instances are immutable and can be shared between threads.
+ *
+ * The 3D variant rotates ZXY points around the tilted rotation axis (Rodrigues'
+ * rotation formula). The axis goes through (centreZ, centreX, centreY); its
+ * direction leans by tiltZ in the ZY plane and by tiltX in the XY plane. Without
+ * tilt, it gives the same ZX result as the 2D compensation and leaves Y as is.
+ */
+public final class RotationCompensation {
+
+    private final double centreZ_;
+    private final double centreX_;
+    private final double centreY_;
+    private final double tiltZ_;
+    private final double tiltX_;
+    private final int rotationDir_;
+    // Unit vector of the rotation axis, ZXY
+    private final double axisZ_;
+    private final double axisX_;
+    private final double axisY_;
+
+    public RotationCompensation(double centreZ, double centreX, int rotationDir) {
+        this(centreZ, centreX, 0.0, 0.0, 0.0, rotationDir);
+    }
+
+    /**
+     * @param centreZ
+     * @param centreX
+     * @param centreY     Y coordinate of the point (centreZ, centreX) of the axis
+     * @param tiltZ       signed tilt of the axis in the ZY plane, in degrees
+     * @param tiltX       signed tilt of the axis in the XY plane, in degrees
+     * @param rotationDir
+     */
+    public RotationCompensation(double centreZ, double centreX, double centreY, double tiltZ, double tiltX,
+            int rotationDir) {
+        centreZ_ = centreZ;
+        centreX_ = centreX;
+        centreY_ = centreY;
+        tiltZ_ = tiltZ;
+        tiltX_ = tiltX;
+        rotationDir_ = rotationDir;
+
+        double z = Math.tan(Math.toRadians(tiltZ));
+        double x = Math.tan(Math.toRadians(tiltX));
+        double norm = Math.sqrt(z * z + x * x + 1.0);
+        axisZ_ = z / norm;
+        axisX_ = x / norm;
+        axisY_ = 1.0 / norm;
+    }
+
+    public double getCentreZ() {
+        return centreZ_;
+    }
+
+    public double getCentreX() {
+        return centreX_;
+    }
+
+    public double getCentreY() {
+        return centreY_;
+    }
+
+    public double getTiltZ() {
+        return tiltZ_;
+    }
+
+    public double getTiltX() {
+        return tiltX_;
+    }
+
+    public int getRotationDirection() {
+        return rotationDir_;
+    }
+
+    /**
+     * Convert a motor angle to the signed angle (in radians) used by the
+     * compensation, taking the rotation direction into account
+     *
+     * @param angleDeg motor angle in degrees
+     * @return
+     */
+    public double toRadians(double angleDeg) {
+        double radAngle = Math.toRadians(angleDeg);
+        radAngle *= rotationDir_;
+        return radAngle;
+    }
+
+    /**
+     * Compute the ZX position of a point after rotation of the stage
+     *
+     * @param angleDeg motor angle in degrees
+     * @param origin   ZX position of the point before rotation
+     * @param relative if true, the displacement from origin is returned instead
+     * @param out      array of length >= 2 receiving the ZX result
+     */
+    public void compute(double angleDeg, double[] origin, boolean relative, double[] out) {
+        double radAngle = toRadians(angleDeg);
+        compute(Math.cos(radAngle), Math.sin(radAngle), origin[0], origin[1], relative, out);
+    }
+
+    /**
+     * Same as {@link #compute(double, double[], boolean, double[])}, from a
+     * precomputed cosine and sine of the signed angle (see
+     * {@link #toRadians(double)})
+     *
+     * @param cos
+     * @param sin
+     * @param originZ
+     * @param originX
+     * @param relative
+     * @param out
+     */
+    public void compute(double cos, double sin, double originZ, double originX, boolean relative, double[] out) {
+        double dz = originZ - centreZ_;
+        double dx = originX - centreX_;
+
+        double z = cos * dz + -sin * dx;
+        double x = sin * dz + cos * dx;
+
+        z += centreZ_;
+        x += centreX_;
+
+        if (relative) {
+            z -= originZ;
+            x -= originX;
+        }
+
+        out[0] = z;
+        out[1] = x;
+    }
+
+    /**
+     * Compute the ZXY position of a point after rotation of the stage around
+     * the tilted axis
+     *
+     * @param angleDeg motor angle in degrees
+     * @param origin   ZXY position of the point before rotation
+     * @param relative if true, the displacement from origin is returned instead
+     * @param out      array of length >= 3 receiving the ZXY result
+     */
+    public void compute3D(double angleDeg, double[] origin, boolean relative, double[] out) {
+        double radAngle = toRadians(angleDeg);
+        compute3D(Math.cos(radAngle), Math.sin(radAngle), origin[0], origin[1], origin[2], relative, out);
+    }
+
+    /**
+     * Same as {@link #compute3D(double, double[], boolean, double[])}, from a
+     * precomputed cosine and sine of the signed angle
+     *
+     * @param cos
+     * @param sin
+     * @param originZ
+     * @param originX
+     * @param originY
+     * @param relative
+     * @param out
+     */
+    public void compute3D(double cos, double sin, double originZ, double originX, double originY, boolean relative,
+            double[] out) {
+        double dz = originZ - centreZ_;
+        double dx = originX - centreX_;
+        double dy = originY - centreY_;
+
+        // v cos + (axis x v) sin + axis (axis . v) (1 - cos), in ZXY order
+        double crossZ = axisX_ * dy - axisY_ * dx;
+        double crossX = axisY_ * dz - axisZ_ * dy;
+        double crossY = axisZ_ * dx - axisX_ * dz;
+        double dot = (axisZ_ * dz + axisX_ * dx + axisY_ * dy) * (1.0 - cos);
+
+        double z = cos * dz + sin * crossZ + axisZ_ * dot + centreZ_;
+        double x = cos * dx + sin * crossX + axisX_ * dot + centreX_;
+        double y = cos * dy + sin * crossY + axisY_ * dot + centreY_;
+
+        if (relative) {
+            z -= originZ;
+            x -= originX;
+            y -= originY;
+        }
+
+        out[0] = z;
+        out[1] = x;
+        out[2] = y;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import com.google.common.eventbus.Subscribe;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.micromanager.Studio;
+import org.micromanager.events.internal.InternalShutdownCommencingEvent;
+
+/**
+ * The rotation services of a Studio. Each service is created on first use and
+ * shared by all the users of the Studio.
+ *
+ * The context is disposed of on the Micro-Manager shutdown, or with
+ * {@link #dispose(Studio)}: the pending settings are written to the profile
+ * and the services are released. A later request creates a new context.
+ */
+public final class RotationContext {
+
+    private static final Map<Studio, RotationContext> contexts_ = new WeakHashMap<>();
+
+    private final Studio studio_;
+    // Settings stores by rig (null for the GUI drive selection)
+    private final Map<RotationRig.Key, RotationSettingsStore> settingsStores_ = new HashMap<>();
+    private RotationRigRegistry rigRegistry_;
+    private StagePositionCache positionCache_;
+    private MotionTelemetry telemetry_;
+    private MotionProfileStore motionProfiles_;
+
+    /**
+     * Get the context of a Studio, creating it on first use
+     * 
+     * @param studio
+     * @return
+     */
+    public static synchronized RotationContext get(Studio studio) {
+        RotationContext context = contexts_.get(studio);
+        if (context == null) {
+            context = new RotationContext(studio);
+            contexts_.put(studio, context);
+            studio.events().registerForEvents(context);
+        }
+        return context;
+    }
+
+    /**
+     * Write the pending settings of a Studio to the profile and release its
+     * services
+     * 
+     * @param studio
+     */
+    public static void dispose(Studio studio) {
+        RotationContext context;
+        synchronized (RotationContext.class) {
+            context = contexts_.remove(studio);
+        }
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    private RotationContext(Studio studio) {
+        studio_ = studio;
+    }
+
+    /**
+     * @param rig the rig drives, or null for the drives selected in the GUI
+     * @return the settings store of the rig, loaded from the profile on first
+     *         use
+     */
+    public synchronized RotationSettingsStore getSettingsStore(RotationRig.Key rig) {
+        RotationSettingsStore store = settingsStores_.get(rig);
+        if (store == null) {
+            store = new RotationSettingsStore(studio_, rig);
+            settingsStores_.put(rig, store);
+        }
+        return store;
+    }
+
+    public synchronized RotationRigRegistry getRigRegistry() {
+        if (rigRegistry_ == null) {
+            rigRegistry_ = new RotationRigRegistry(studio_);
+        }
+        return rigRegistry_;
+    }
+
+    /**
+     * @return the position cache, registered for the stage events on first use
+     */
+    public synchronized StagePositionCache getPositionCache() {
+        if (positionCache_ == null) {
+            positionCache_ = new StagePositionCache(studio_.getCMMCore());
+            studio_.events().registerForEvents(positionCache_);
+        }
+        return positionCache_;
+    }
+
+    public synchronized MotionTelemetry getTelemetry() {
+        if (telemetry_ == null) {
+            telemetry_ = new MotionTelemetry();
+        }
+        return telemetry_;
+    }
+
+    public synchronized MotionProfileStore getMotionProfiles() {
+        if (motionProfiles_ == null) {
+            motionProfiles_ = new MotionProfileStore(studio_);
+        }
+        return motionProfiles_;
+    }
+
+    @Subscribe
+    public void onShutdownCommencing(InternalShutdownCommencingEvent event) {
+        if (!event.isCanceled()) {
+            dispose(studio_);
+        }
+    }
+
+    private synchronized void close() {
+        studio_.events().unregisterForEvents(this);
+        if (positionCache_ != null) {
+            studio_.events().unregisterForEvents(positionCache_);
+        }
+        if (rigRegistry_ != null) {
+            rigRegistry_.shutdown();
+        }
+        for (RotationSettingsStore store : settingsStores_.values()) {
+            try {
+                store.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                studio_.logs().logError(e, "Interrupted while saving the rotation settings");
+                return;
+            }
+        }
+    }
+}
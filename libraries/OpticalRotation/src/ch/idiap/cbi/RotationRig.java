@@ -0,0 +1,156 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.Studio;
+
+/**
+ * One rotation setup: an XY stage, a Z stage and a rotation stage, with its own
+ * calibration and its own threads. Motions submitted to different rigs run
+ * concurrently; motions of a rig run one after the other. The asynchronous
+ * motions of the rig rotation manager are issued and polled on a motion thread
+ * of the rig, so that a slow command on one rig does not delay the others.
+ *
+ * Rigs are obtained from the {@link RotationRigRegistry}.
+ */
+public final class RotationRig {
+
+    /**
+     * Drives identifying a rig
+     */
+    public static final class Key {
+        private final String xyStage_;
+        private final String zStage_;
+        private final String rStage_;
+
+        public Key(String xyStage, String zStage, String rStage) {
+            if (xyStage == null || zStage == null || rStage == null) {
+                throw new IllegalArgumentException("Rig drives cannot be null");
+            }
+            xyStage_ = xyStage;
+            zStage_ = zStage;
+            rStage_ = rStage;
+        }
+
+        public String getXYStage() {
+            return xyStage_;
+        }
+
+        public String getZStage() {
+            return zStage_;
+        }
+
+        public String getRStage() {
+            return rStage_;
+        }
+
+        String getProfilePrefix() {
+            return "RIG[" + toString() + "].";
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return xyStage_.equals(other.xyStage_) && zStage_.equals(other.zStage_) && rStage_.equals(other.rStage_);
+        }
+
+        @Override
+        public int hashCode() {
+            return (xyStage_.hashCode() * 31 + zStage_.hashCode()) * 31 + rStage_.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return xyStage_ + "/" + zStage_ + "/" + rStage_;
+        }
+    }
+
+    private final Key key_;
+    private final OpticalRotation rotation_;
+    private final ExecutorService executor_;
+    private final ScheduledExecutorService motionScheduler_;
+
+    RotationRig(Studio studio, final Key key) {
+        key_ = key;
+        motionScheduler_ = OpticalRotation.newMotionScheduler("Rotation rig " + key + " motion");
+        rotation_ = new OpticalRotation(studio, key, motionScheduler_);
+        executor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Rotation rig " + key);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Key getKey() {
+        return key_;
+    }
+
+    /**
+     * @return the rotation manager bound to the rig drives and calibration
+     */
+    public OpticalRotation getRotation() {
+        return rotation_;
+    }
+
+    /**
+     * Run a motion on the rig thread
+     * 
+     * @param task
+     * @return
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor_.submit(task);
+    }
+
+    /**
+     * Run a motion on the rig thread
+     * 
+     * @param task
+     * @return
+     */
+    public Future<?> submit(Runnable task) {
+        return executor_.submit(task);
+    }
+
+    void shutdown() {
+        // The motion thread ends by itself once the pending motions are over
+        executor_.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "Rotation rig " + key_;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.Studio;
+
+/**
+ * Rotation rigs of a Studio, by (XY, Z, R) drives. A rig is created, and its
+ * calibration loaded from the profile, the first time it is requested; later
+ * requests return the same rig, so switching between rigs costs a map lookup.
+ */
+public final class RotationRigRegistry {
+
+    private final Studio studio_;
+    private final Map<RotationRig.Key, RotationRig> rigs_ = new LinkedHashMap<>();
+
+    /**
+     * @param studio
+     * @return the rig registry of the Studio
+     * @see RotationContext#getRigRegistry()
+     */
+    public static RotationRigRegistry get(Studio studio) {
+        return RotationContext.get(studio).getRigRegistry();
+    }
+
+    RotationRigRegistry(Studio studio) {
+        studio_ = studio;
+    }
+
+    public RotationRig getRig(String xyStage, String zStage, String rStage) {
+        return getRig(new RotationRig.Key(xyStage, zStage, rStage));
+    }
+
+    public synchronized RotationRig getRig(RotationRig.Key key) {
+        RotationRig rig = rigs_.get(key);
+        if (rig == null) {
+            rig = new RotationRig(studio_, key);
+            rigs_.put(key, rig);
+        }
+        return rig;
+    }
+
+    /**
+     * @return the rigs created so far, in creation order
+     */
+    public synchronized List<RotationRig> getRigs() {
+        return new ArrayList<>(rigs_.values());
+    }
+
+    /**
+     * Forget a rig and stop its motion thread once the submitted motions are
+     * done. Its calibration stays in the profile.
+     * 
+     * @param key
+     */
+    public synchronized void remove(RotationRig.Key key) {
+        RotationRig rig = rigs_.remove(key);
+        if (rig != null) {
+            rig.shutdown();
+        }
+    }
+
+    /**
+     * Forget all the rigs and stop their motion threads once the submitted
+     * motions are done
+     */
+    synchronized void shutdown() {
+        for (RotationRig rig : rigs_.values()) {
+            rig.shutdown();
+        }
+        rigs_.clear();
+    }
+}
@@ -0,0 +1,161 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+/**
+ * Immutable snapshot of the rotation settings kept in the user profile: the
+ * selected drives, the calibration and the tilt. Each change produces a new
+ * snapshot with a higher version.
+ *
+ * A snapshot is always consistent: the compensation it holds is built from its
+ * own centre and direction, so readers on any thread can use it without
+ * locking.
+ */
+public final class RotationSettings {
+
+    private final String zStage_;
+    private final String rStage_;
+    private final double centreZ_;
+    private final double centreX_;
+    private final double centreY_;
+    private final double tiltZ_;
+    private final double tiltX_;
+    private final int rotationDir_;
+    private final boolean calibrated_;
+    private final boolean tiltCompensation_;
+    private final long version_;
+    private final RotationCompensation compensation_;
+
+    RotationSettings(String zStage, String rStage, double centreZ, double centreX, double centreY, double tiltZ,
+            double tiltX, int rotationDir, boolean calibrated, boolean tiltCompensation, long version) {
+        zStage_ = zStage;
+        rStage_ = rStage;
+        centreZ_ = centreZ;
+        centreX_ = centreX;
+        centreY_ = centreY;
+        tiltZ_ = tiltZ;
+        tiltX_ = tiltX;
+        rotationDir_ = rotationDir;
+        calibrated_ = calibrated;
+        tiltCompensation_ = tiltCompensation;
+        version_ = version;
+        compensation_ = tiltCompensation
+                ? new RotationCompensation(centreZ, centreX, centreY, tiltZ, tiltX, rotationDir)
+                : new RotationCompensation(centreZ, centreX, centreY, 0.0, 0.0, rotationDir);
+    }
+
+    /**
+     * @return the stored Z drive, empty if none was selected
+     */
+    public String getZStage() {
+        return zStage_;
+    }
+
+    /**
+     * @return the stored rotation drive, empty if none was selected
+     */
+    public String getRStage() {
+        return rStage_;
+    }
+
+    public double getCentreZ() {
+        return centreZ_;
+    }
+
+    public double getCentreX() {
+        return centreX_;
+    }
+
+    /**
+     * @return Y coordinate at which the centre was calibrated, used by the 3D
+     *         compensation
+     */
+    public double getCentreY() {
+        return centreY_;
+    }
+
+    public double getTiltZ() {
+        return tiltZ_;
+    }
+
+    public double getTiltX() {
+        return tiltX_;
+    }
+
+    public int getRotationDirection() {
+        return rotationDir_;
+    }
+
+    public boolean isCalibrated() {
+        return calibrated_;
+    }
+
+    /**
+     * @return true if the rotations are compensated in 3D around the tilted axis,
+     *         false for the ZX compensation
+     */
+    public boolean isTiltCompensated() {
+        return tiltCompensation_;
+    }
+
+    /**
+     * @return the compensation matching this calibration, tilted only if
+     *         {@link #isTiltCompensated()}
+     */
+    public RotationCompensation getCompensation() {
+        return compensation_;
+    }
+
+    /**
+     * @return a counter incremented by every change
+     */
+    public long getVersion() {
+        return version_;
+    }
+
+    RotationSettings withCalibration(double centreZ, double centreX, double centreY, int rotationDir,
+            boolean calibrated) {
+        return new RotationSettings(zStage_, rStage_, centreZ, centreX, centreY, tiltZ_, tiltX_, rotationDir,
+                calibrated, tiltCompensation_, version_ + 1);
+    }
+
+    RotationSettings withTilt(double tiltZ, double tiltX) {
+        return new RotationSettings(zStage_, rStage_, centreZ_, centreX_, centreY_, tiltZ, tiltX, rotationDir_,
+                calibrated_, tiltCompensation_, version_ + 1);
+    }
+
+    RotationSettings withTiltCompensation(boolean tiltCompensation) {
+        return new RotationSettings(zStage_, rStage_, centreZ_, centreX_, centreY_, tiltZ_, tiltX_, rotationDir_,
+                calibrated_, tiltCompensation, version_ + 1);
+    }
+
+    RotationSettings withZStage(String zStage) {
+        return withStages(zStage, rStage_);
+    }
+
+    RotationSettings withStages(String zStage, String rStage) {
+        return new RotationSettings(zStage, rStage, centreZ_, centreX_, centreY_, tiltZ_, tiltX_, rotationDir_,
+                calibrated_, tiltCompensation_, version_ + 1);
+    }
+
+    RotationSettings withRStage(String rStage) {
+        return withStages(zStage_, rStage);
+    }
+}
@@ -0,0 +1,243 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.micromanager.Studio;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * In-memory cache of the {@link RotationSettings} of a Studio. The profile is
+ * read once, when the store is first requested; reads are then served from the
+ * current snapshot without touching the profile.
+ *
+ * The current snapshot is published through an atomic reference: reads never
+ * block, and always see a complete snapshot. Writers are serialised.
+ *
+ * Changes are published immediately and written back to the profile on a
+ * background thread. Writes are batched: all keys are written at once, and
+ * changes made while a write is pending are persisted together.
+ *
+ * Each rotation rig has its own store, with its keys prefixed by the rig
+ * drives; the store of the drives selected in the GUI uses the plain keys.
+ */
+public final class RotationSettingsStore {
+
+    private static final String CURRENTZDRIVE = "CURRENTZDRIVE";
+    private static final String CURRENTRDRIVE = "CURRENTRDRIVE";
+    private static final String CENTREX = "CENTREX";
+    private static final String CENTREZ = "CENTREZ";
+    private static final String CENTREY = "CENTREY";
+    // The tilts are signed since the 3D compensation: the unsigned tilts stored
+    // under TILTX and TILTZ by older versions are not read, they must be
+    // measured again
+    private static final String TILTX = "SIGNEDTILTX";
+    private static final String TILTZ = "SIGNEDTILTZ";
+    private static final String ROTATIONDIR = "DIRECTION";
+    private static final String CALIBRATED = "CALIBRATED";
+    private static final String TILTCOMPENSATION = "TILTCOMPENSATION";
+
+    private static final ExecutorService persistExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Rotation settings persistence");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Studio studio_;
+    private final String prefix_;
+    private final AtomicReference<RotationSettings> settings_ = new AtomicReference<>();
+    private volatile long persistedVersion_;
+    private final AtomicBoolean persistPending_ = new AtomicBoolean(false);
+
+    /**
+     * Get the settings store of a Studio, loading it from the profile on first
+     * use
+     * 
+     * @param studio
+     * @return
+     */
+    public static RotationSettingsStore get(Studio studio) {
+        return get(studio, null);
+    }
+
+    /**
+     * Get the settings store of a rotation rig, loading it from the profile on
+     * first use
+     * 
+     * @param studio
+     * @param rig    the rig drives, or null for the drives selected in the GUI
+     * @return
+     * @see RotationContext#getSettingsStore(RotationRig.Key)
+     */
+    public static RotationSettingsStore get(Studio studio, RotationRig.Key rig) {
+        return RotationContext.get(studio).getSettingsStore(rig);
+    }
+
+    RotationSettingsStore(Studio studio, RotationRig.Key rig) {
+        studio_ = studio;
+        prefix_ = rig == null ? "" : rig.getProfilePrefix();
+
+        MutablePropertyMapView profile = studio_.profile().getSettings(OpticalRotation.class);
+        String zStage = rig == null ? profile.getString(CURRENTZDRIVE, "") : rig.getZStage();
+        String rStage = rig == null ? profile.getString(CURRENTRDRIVE, "") : rig.getRStage();
+        settings_.set(new RotationSettings(zStage, rStage, profile.getDouble(key(CENTREZ), 0.0),
+                profile.getDouble(key(CENTREX), 0.0), profile.getDouble(key(CENTREY), 0.0),
+                profile.getDouble(key(TILTZ), 0.0), profile.getDouble(key(TILTX), 0.0),
+                profile.getInteger(key(ROTATIONDIR), 1), profile.getBoolean(key(CALIBRATED), false),
+                profile.getBoolean(key(TILTCOMPENSATION), false), 0));
+        persistedVersion_ = 0;
+    }
+
+    private String key(String name) {
+        return prefix_ + name;
+    }
+
+    /**
+     * @return the current settings
+     */
+    public RotationSettings getSettings() {
+        return settings_.get();
+    }
+
+    /**
+     * @return the version of the current settings
+     */
+    public long getVersion() {
+        return settings_.get().getVersion();
+    }
+
+    /**
+     * Set the ZX centre, keeping the Y coordinate of the current calibration
+     */
+    public synchronized RotationSettings setCalibration(double centreZ, double centreX, int rotationDir,
+            boolean calibrated) {
+        RotationSettings settings = settings_.get();
+        return publish(settings.withCalibration(centreZ, centreX, settings.getCentreY(), rotationDir, calibrated));
+    }
+
+    public synchronized RotationSettings setCalibration(double centreZ, double centreX, double centreY,
+            int rotationDir, boolean calibrated) {
+        return publish(settings_.get().withCalibration(centreZ, centreX, centreY, rotationDir, calibrated));
+    }
+
+    public synchronized RotationSettings setTilt(double tiltZ, double tiltX) {
+        return publish(settings_.get().withTilt(tiltZ, tiltX));
+    }
+
+    public synchronized RotationSettings setTiltCompensation(boolean tiltCompensation) {
+        return publish(settings_.get().withTiltCompensation(tiltCompensation));
+    }
+
+    public synchronized RotationSettings setZStage(String stage) {
+        return publish(settings_.get().withZStage(stage));
+    }
+
+    /**
+     * Select the drives that are not selected yet
+     * 
+     * @param zStage default Z drive
+     * @param rStage default rotation drive
+     * @return
+     */
+    public synchronized RotationSettings setDefaultStages(String zStage, String rStage) {
+        RotationSettings settings = settings_.get();
+        if (!settings.getZStage().isEmpty() && !settings.getRStage().isEmpty()) {
+            return settings;
+        }
+        return publish(settings.withStages(settings.getZStage().isEmpty() ? zStage : settings.getZStage(),
+                settings.getRStage().isEmpty() ? rStage : settings.getRStage()));
+    }
+
+    public synchronized RotationSettings setStages(String zStage, String rStage) {
+        return publish(settings_.get().withStages(zStage, rStage));
+    }
+
+    public synchronized RotationSettings setRStage(String stage) {
+        return publish(settings_.get().withRStage(stage));
+    }
+
+    /**
+     * Wait until the current settings are written to the profile
+     * 
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        try {
+            persistExecutor_.submit(new Runnable() {
+                @Override
+                public void run() {
+                    persist();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            studio_.logs().logError(e, "Could not save the rotation settings");
+        }
+    }
+
+    private RotationSettings publish(RotationSettings settings) {
+        settings_.set(settings);
+        if (persistPending_.compareAndSet(false, true)) {
+            persistExecutor_.execute(new Runnable() {
+                @Override
+                public void run() {
+                    persist();
+                }
+            });
+        }
+        return settings;
+    }
+
+    private void persist() {
+        // Changes published from now on schedule a new write
+        persistPending_.set(false);
+
+        RotationSettings settings = settings_.get();
+        if (settings.getVersion() <= persistedVersion_) {
+            return;
+        }
+
+        try {
+            MutablePropertyMapView profile = studio_.profile().getSettings(OpticalRotation.class);
+            if (prefix_.isEmpty()) {
+                profile.putString(CURRENTZDRIVE, settings.getZStage());
+                profile.putString(CURRENTRDRIVE, settings.getRStage());
+            }
+            profile.putDouble(key(CENTREZ), settings.getCentreZ());
+            profile.putDouble(key(CENTREX), settings.getCentreX());
+            profile.putDouble(key(CENTREY), settings.getCentreY());
+            profile.putDouble(key(TILTZ), settings.getTiltZ());
+            profile.putDouble(key(TILTX), settings.getTiltX());
+            profile.putInteger(key(ROTATIONDIR), settings.getRotationDirection());
+            profile.putBoolean(key(CALIBRATED), settings.isCalibrated());
+            profile.putBoolean(key(TILTCOMPENSATION), settings.isTiltCompensated());
+            persistedVersion_ = settings.getVersion();
+        } catch (RuntimeException e) {
+            studio_.logs().logError(e, "Could not save the rotation settings");
+        }
+    }
+}
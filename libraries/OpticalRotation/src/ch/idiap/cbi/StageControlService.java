@@ -0,0 +1,218 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.awt.geom.Point2D;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import mmcorej.CMMCore;
+import org.micromanager.Studio;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Stage maintenance actions of the 4D stage (homing, centring, zeroing the
+ * rotation and recovering the drivers) without a GUI, for scripts and
+ * acquisition hooks.
+ *
+ * Every action returns immediately. The returned future completes when the
+ * devices are no longer busy. The actions are ordered with the asynchronous
+ * motions of the underlying {@link OpticalRotation}, axis by axis.
+ */
+public class StageControlService {
+
+    private static final String[] CENTRE_KEYS = new String[] { "CENTERX", "CENTERY", "CENTERZ" };
+    private static final double[] DEFAULT_CENTRE = new double[] { 2000., 2000., 1200. };
+
+    private final Studio studio_;
+    private final CMMCore core_;
+    private final OpticalRotation rotation_;
+
+    public StageControlService(Studio studio) {
+        this(studio, new OpticalRotation(studio));
+    }
+
+    /**
+     * @param studio
+     * @param rotation rotation manager whose stages are driven
+     */
+    public StageControlService(Studio studio, OpticalRotation rotation) {
+        studio_ = studio;
+        core_ = studio.getCMMCore();
+        rotation_ = rotation;
+    }
+
+    public OpticalRotation getRotation() {
+        return rotation_;
+    }
+
+    public MotionFuture homeXY() {
+        final String stage = rotation_.getXYStage();
+        return invalidateWhenDone(rotation_.startCommands(null, null, new OpticalRotation.Command() {
+            @Override
+            public void issue() throws Exception {
+                core_.home(stage);
+            }
+        }), stage);
+    }
+
+    public MotionFuture homeZ() {
+        final String stage = rotation_.getZStage();
+        return invalidateWhenDone(rotation_.startCommands(null, new OpticalRotation.Command() {
+            @Override
+            public void issue() throws Exception {
+                core_.home(stage);
+            }
+        }, null), stage);
+    }
+
+    /**
+     * Set the current position of the R stage as its origin. The motion is over
+     * once the stage reports it is no longer busy.
+     * 
+     * @return
+     */
+    public MotionFuture zeroR() {
+        final String stage = rotation_.getRStage();
+        return invalidateWhenDone(rotation_.startCommands(new OpticalRotation.Command() {
+            @Override
+            public void issue() throws Exception {
+                core_.setOrigin(stage);
+            }
+        }, null, null), stage);
+    }
+
+    /**
+     * Move the XY and Z stages to the registered centre
+     * 
+     * @return
+     */
+    public MotionFuture centre() {
+        final double[] centre = getCentre();
+        final String xyStage = rotation_.getXYStage();
+        final String zStage = rotation_.getZStage();
+        final StagePositionCache positions = rotation_.getPositionCache();
+        return rotation_.startCommands(null, new OpticalRotation.Command() {
+            @Override
+            public void issue() throws Exception {
+                core_.setPosition(zStage, centre[2]);
+                positions.commandedPosition(zStage, centre[2]);
+            }
+        }, new OpticalRotation.Command() {
+            @Override
+            public void issue() throws Exception {
+                core_.setXYPosition(xyStage, centre[0], centre[1]);
+                positions.commandedXYPosition(xyStage, centre[0], centre[1]);
+            }
+        });
+    }
+
+    /**
+     * Register the current XY and Z position as centre, once the pending
+     * motions are over
+     * 
+     * @return the registered XYZ centre
+     */
+    public CompletableFuture<double[]> registerCentre() {
+        final String xyStage = rotation_.getXYStage();
+        final String zStage = rotation_.getZStage();
+        return rotation_.afterMotions(new Supplier<double[]>() {
+            @Override
+            public double[] get() {
+                try {
+                    Point2D.Double pos = core_.getXYStagePosition(xyStage);
+                    double zPos = core_.getPosition(zStage);
+                    double[] centre = new double[] { pos.x, pos.y, zPos };
+                    setCentre(centre);
+                    return centre;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reload the drivers of the stages. The pending motions are not waited for,
+     * since recovering is meant for stages that no longer respond.
+     * 
+     * @return
+     */
+    public CompletableFuture<Void> recover() {
+        final String xyStage = rotation_.getXYStage();
+        final String zStage = rotation_.getZStage();
+        final String rStage = rotation_.getRStage();
+        final StagePositionCache positions = rotation_.getPositionCache();
+        return rotation_.runNow(new OpticalRotation.Command() {
+            @Override
+            public void issue() throws Exception {
+                core_.initializeDevice(xyStage);
+                core_.initializeDevice(rStage);
+                core_.initializeDevice(zStage);
+                positions.invalidate(null);
+                studio_.logs().logMessage("Stage drivers reloaded");
+            }
+        });
+    }
+
+    /**
+     * @return registered XYZ centre
+     */
+    public double[] getCentre() {
+        MutablePropertyMapView settings = studio_.profile().getSettings(StageControlService.class);
+        double[] centre = new double[CENTRE_KEYS.length];
+        for (int i = 0; i < centre.length; i++) {
+            centre[i] = settings.getDouble(CENTRE_KEYS[i], DEFAULT_CENTRE[i]);
+        }
+        return centre;
+    }
+
+    /**
+     * @return true if a centre was registered, false if the default is used
+     */
+    public boolean hasCentre() {
+        return studio_.profile().getSettings(StageControlService.class).containsKey(CENTRE_KEYS[0]);
+    }
+
+    /**
+     * @param centre XYZ centre
+     */
+    public void setCentre(double[] centre) {
+        for (int i = 0; i < CENTRE_KEYS.length; i++) {
+            studio_.profile().getSettings(StageControlService.class).putDouble(CENTRE_KEYS[i], centre[i]);
+        }
+    }
+
+    /**
+     * The position of homed or zeroed stages is only known from the hardware
+     */
+    private MotionFuture invalidateWhenDone(MotionFuture motion, final String stage) {
+        final StagePositionCache positions = rotation_.getPositionCache();
+        motion.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                positions.invalidate(stage);
+            }
+        });
+        return motion;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import com.google.common.eventbus.Subscribe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import mmcorej.CMMCore;
+import org.micromanager.Studio;
+import org.micromanager.events.StagePositionChangedEvent;
+import org.micromanager.events.XYStagePositionChangedEvent;
+
+/**
+ * Last known stage positions, kept from the Micro-Manager position events and
+ * from the targets commanded by the rotation code. A position younger than the
+ * maximum age is served from memory; older ones are read from the core, which
+ * is a blocking round trip to the controller.
+ *
+ * The maximum age is 0 by default: every read goes to the core, as without the
+ * cache.
+ */
+public final class StagePositionCache {
+
+    /**
+     * Immutable position sample; single-axis stages only use x
+     */
+    private static final class Entry {
+        final double x;
+        final double y;
+        final long nanos;
+
+        Entry(double x, double y, long nanos) {
+            this.x = x;
+            this.y = y;
+            this.nanos = nanos;
+        }
+    }
+
+    private final CMMCore core_;
+    private final Map<String, Entry> entries_ = new ConcurrentHashMap<>();
+    private volatile long maxAgeNanos_ = 0;
+
+    /**
+     * Get the position cache of a Studio, registering it for the stage events on
+     * first use
+     * 
+     * @param studio
+     * @return
+     * @see RotationContext#getPositionCache()
+     */
+    public static StagePositionCache get(Studio studio) {
+        return RotationContext.get(studio).getPositionCache();
+    }
+
+    StagePositionCache(CMMCore core) {
+        core_ = core;
+    }
+
+    /**
+     * Set how old a cached position can be and still be used
+     * 
+     * @param maxAgeMs maximum age in milliseconds, 0 to always read the core
+     */
+    public void setMaxAge(long maxAgeMs) {
+        maxAgeNanos_ = TimeUnit.MILLISECONDS.toNanos(Math.max(maxAgeMs, 0));
+    }
+
+    public long getMaxAge() {
+        return TimeUnit.NANOSECONDS.toMillis(maxAgeNanos_);
+    }
+
+    public double getPosition(String stage) throws Exception {
+        Entry entry = fresh(stage);
+        if (entry == null) {
+            double position = core_.getPosition(stage);
+            put(stage, position, 0.0);
+            return position;
+        }
+        return entry.x;
+    }
+
+    /**
+     * @param stage XY stage
+     * @return the XY position
+     * @throws Exception
+     */
+    public double[] getXYPosition(String stage) throws Exception {
+        Entry entry = fresh(stage);
+        if (entry == null) {
+            double x = core_.getXPosition(stage);
+            double y = core_.getYPosition(stage);
+            put(stage, x, y);
+            return new double[] { x, y };
+        }
+        return new double[] { entry.x, entry.y };
+    }
+
+    /**
+     * Record an absolute target sent to a single-axis stage
+     * 
+     * @param stage
+     * @param position
+     */
+    public void commandedPosition(String stage, double position) {
+        put(stage, position, 0.0);
+    }
+
+    /**
+     * Record an absolute target sent to an XY stage
+     * 
+     * @param stage
+     * @param x
+     * @param y
+     */
+    public void commandedXYPosition(String stage, double x, double y) {
+        put(stage, x, y);
+    }
+
+    /**
+     * Record a relative move of a single-axis stage: the cached position is
+     * shifted if still valid, dropped otherwise
+     * 
+     * @param stage
+     * @param offset
+     */
+    public void commandedOffset(String stage, double offset) {
+        Entry entry = fresh(stage);
+        if (entry == null) {
+            entries_.remove(stage);
+        } else {
+            commandedPosition(stage, entry.x + offset);
+        }
+    }
+
+    /**
+     * Record a relative move of an XY stage
+     * 
+     * @param stage
+     * @param dx
+     * @param dy
+     */
+    public void commandedXYOffset(String stage, double dx, double dy) {
+        Entry entry = fresh(stage);
+        if (entry == null) {
+            entries_.remove(stage);
+        } else {
+            commandedXYPosition(stage, entry.x + dx, entry.y + dy);
+        }
+    }
+
+    /**
+     * Drop the cached position of a stage, or of all stages if null
+     * 
+     * @param stage
+     */
+    public void invalidate(String stage) {
+        if (stage == null) {
+            entries_.clear();
+        } else {
+            entries_.remove(stage);
+        }
+    }
+
+    private void put(String stage, double x, double y) {
+        entries_.put(stage, new Entry(x, y, System.nanoTime()));
+    }
+
+    private Entry fresh(String stage) {
+        long maxAge = maxAgeNanos_;
+        if (maxAge <= 0) {
+            return null;
+        }
+        Entry entry = entries_.get(stage);
+        if (entry == null || System.nanoTime() - entry.nanos > maxAge) {
+            return null;
+        }
+        return entry;
+    }
+
+    @Subscribe
+    public void onStagePositionChanged(StagePositionChangedEvent event) {
+        put(event.getDeviceName(), event.getPos(), 0.0);
+    }
+
+    @Subscribe
+    public void onXYStagePositionChanged(XYStagePositionChangedEvent event) {
+        put(event.getDeviceName(), event.getXPos(), event.getYPos());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * Streaming estimate of the rotation axis tilt. The mean and covariance of the
+ * ZXY points are updated in constant time per point (Welford's algorithm), so
+ * the tilt can be refreshed after every point without revisiting the previous
+ * ones.
+ *
+ * The rotation plane is the plane of the points, and the axis its normal: the
+ * eigenvector of the smallest covariance eigenvalue.
+ */
+public class TiltEstimator {
+
+    private static final int DIM = 3;
+
+    private long count_;
+    private final double[] mean_ = new double[DIM];
+    // Sums of products of deviations from the mean
+    private final double[][] comoment_ = new double[DIM][DIM];
+    private final double[] delta_ = new double[DIM];
+
+    public void add(double z, double x, double y) {
+        count_++;
+
+        delta_[0] = z - mean_[0];
+        delta_[1] = x - mean_[1];
+        delta_[2] = y - mean_[2];
+
+        mean_[0] += delta_[0] / count_;
+        mean_[1] += delta_[1] / count_;
+        mean_[2] += delta_[2] / count_;
+
+        // (n-1)/n * delta_i * delta_j == delta_i * (value_j - new mean_j)
+        double scale = (count_ - 1.0) / count_;
+        for (int i = 0; i < DIM; i++) {
+            for (int j = i; j < DIM; j++) {
+                comoment_[i][j] += scale * delta_[i] * delta_[j];
+            }
+        }
+    }
+
+    public void clear() {
+        count_ = 0;
+        for (int i = 0; i < DIM; i++) {
+            mean_[i] = 0.0;
+            for (int j = 0; j < DIM; j++) {
+                comoment_[i][j] = 0.0;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count_;
+    }
+
+    /**
+     * @return the ZXY mean of the points
+     */
+    public double[] getMean() {
+        return mean_.clone();
+    }
+
+    /**
+     * @return the (biased, divided by n) ZXY covariance of the points
+     */
+    public double[][] getCovariance() {
+        double[][] covariance = new double[DIM][DIM];
+        if (count_ == 0) {
+            return covariance;
+        }
+        for (int i = 0; i < DIM; i++) {
+            for (int j = i; j < DIM; j++) {
+                covariance[i][j] = comoment_[i][j] / count_;
+                covariance[j][i] = covariance[i][j];
+            }
+        }
+        return covariance;
+    }
+
+    /**
+     * Tilt of the rotation axis from the current points. The axis is oriented
+     * towards +Y, so that the angles are signed and close to 0 for an axis
+     * aligned with Y.
+     *
+     * @return the tilt angles in degrees {zy, xy}
+     * @throws IllegalStateException if fewer than two points were added
+     */
+    public double[] getTilt() {
+        if (count_ < 2) {
+            throw new IllegalStateException("At least two points are needed");
+        }
+
+        EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(getCovariance(), false));
+        RealVector axis = eigen.getEigenvector(DIM - 1);
+
+        // The eigenvector sign is arbitrary
+        double sign = axis.getEntry(2) < 0 ? -1.0 : 1.0;
+        double dir_z = sign * axis.getEntry(0);
+        double dir_x = sign * axis.getEntry(1);
+        double dir_y = sign * axis.getEntry(2);
+
+        double theta_xy = Math.toDegrees(Math.atan2(dir_x, dir_y));
+        double theta_zy = Math.toDegrees(Math.atan2(dir_z, dir_y));
+
+        return new double[] { theta_zy, theta_xy };
+    }
+}
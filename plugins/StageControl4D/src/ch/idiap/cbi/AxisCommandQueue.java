@@ -0,0 +1,130 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Relative moves of one axis, merged while the axis is busy. Moves requested
+ * during a motion are summed into a single net move, issued when the motion is
+ * over, so no request is lost and the moves of the axis never overlap.
+ *
+ * At most one drain task per queue runs on the executor at any time.
+ */
+public class AxisCommandQueue {
+
+    /**
+     * Performs a relative move and waits for it to complete
+     */
+    public interface Mover {
+        /**
+         * @param first  offset along the first (or only) axis
+         * @param second offset along the second axis, 0 for single-axis stages
+         */
+        void move(double first, double second);
+    }
+
+    private final Executor executor_;
+    private final Mover mover_;
+
+    // Guarded by this
+    private double pendingFirst_ = 0.0;
+    private double pendingSecond_ = 0.0;
+    private int pendingCount_ = 0;
+    private boolean draining_ = false;
+
+    private final Runnable drain_ = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public AxisCommandQueue(Executor executor, Mover mover) {
+        executor_ = executor;
+        mover_ = mover;
+    }
+
+    public void add(double first) {
+        add(first, 0.0);
+    }
+
+    public synchronized void add(double first, double second) {
+        pendingFirst_ += first;
+        pendingSecond_ += second;
+        pendingCount_++;
+        if (!draining_) {
+            draining_ = true;
+            try {
+                executor_.execute(drain_);
+            } catch (RuntimeException e) {
+                // The request stays pending for the next one
+                draining_ = false;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Drop the moves that are not issued yet
+     */
+    public synchronized void clear() {
+        pendingFirst_ = 0.0;
+        pendingSecond_ = 0.0;
+        pendingCount_ = 0;
+    }
+
+    /**
+     * @return the number of requests waiting to be merged
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount_;
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                double first;
+                double second;
+                synchronized (this) {
+                    if (pendingCount_ == 0) {
+                        draining_ = false;
+                        return;
+                    }
+                    first = pendingFirst_;
+                    second = pendingSecond_;
+                    clear();
+                }
+
+                // Clicks that cancel out do not move the stage
+                if (first != 0.0 || second != 0.0) {
+                    mover_.move(first, second);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            // A failed move must not stop the queue, the next request drains
+            // the moves still pending
+            synchronized (this) {
+                draining_ = false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+package ch.idiap.cbi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs stage tasks with one serial lane per device. A task declares the devices
+ * it moves and starts once it is first in the lane of each of them, holding
+ * them all until it returns: tasks sharing a device run in submission order and
+ * never interleave, while tasks on disjoint devices run in parallel.
+ *
+ * Lanes are all updated under the scheduler lock when a task is submitted, so
+ * a multi-device task cannot deadlock with another one. The lanes of a task are
+ * released when it returns or throws, or when the executor rejects it.
+ *
+ * An asynchronous task only starts an operation on the executor; its lanes are
+ * held until the operation completes, without keeping an executor thread.
+ */
+public class DeviceLaneScheduler {
+
+    private final Executor executor_;
+    // Guarded by this: pending and running tasks of each device, running first
+    private final Map<String, ArrayDeque<LaneTask>> lanes_ = new HashMap<>();
+
+    private final class LaneTask implements Runnable {
+        final Runnable task;
+        // Asynchronous tasks only
+        final Callable<? extends CompletionStage<?>> operation;
+        final CompletableFuture<Void> done;
+        final String[] devices;
+        boolean started = false;
+
+        LaneTask(Runnable task, Callable<? extends CompletionStage<?>> operation, String[] devices) {
+            this.task = task;
+            this.operation = operation;
+            this.done = operation == null ? null : new CompletableFuture<Void>();
+            this.devices = devices;
+        }
+
+        @Override
+        public void run() {
+            if (operation == null) {
+                try {
+                    task.run();
+                } finally {
+                    finished(this);
+                }
+                return;
+            }
+
+            CompletionStage<?> stage;
+            try {
+                stage = operation.call();
+            } catch (Throwable e) {
+                finished(this);
+                done.completeExceptionally(e);
+                return;
+            }
+            stage.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object value, Throwable error) {
+                    finished(LaneTask.this);
+                    if (error == null) {
+                        done.complete(null);
+                    } else {
+                        done.completeExceptionally(error);
+                    }
+                }
+            });
+        }
+
+        void rejected(RejectedExecutionException e) {
+            if (done != null) {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * @param executor runs the tasks, it needs as many threads as the tasks
+     *                 expected to run in parallel
+     */
+    public DeviceLaneScheduler(Executor executor) {
+        executor_ = executor;
+    }
+
+    /**
+     * Queue a task on the lanes of the given devices
+     * 
+     * @param task
+     * @param devices devices moved by the task
+     * @throws RejectedExecutionException if the executor rejected the task, or
+     *                                    another task started by this one
+     */
+    public void submit(Runnable task, String... devices) {
+        RejectedExecutionException rejected = enqueue(new LaneTask(task, null, unique(devices)));
+        if (rejected != null) {
+            throw rejected;
+        }
+    }
+
+    /**
+     * Queue an asynchronous task on the lanes of the given devices. The task
+     * starts an operation and returns without waiting for it; the lanes are held
+     * until the operation completes.
+     * 
+     * @param operation starts the operation, run on the executor
+     * @param devices   devices moved by the operation
+     * @return completes once the operation has completed and the lanes are
+     *         released; fails if the operation fails, if starting it throws, or
+     *         if the executor rejects the task
+     */
+    public CompletableFuture<Void> submitAsync(Callable<? extends CompletionStage<?>> operation,
+            String... devices) {
+        LaneTask laneTask = new LaneTask(null, operation, unique(devices));
+        enqueue(laneTask);
+        return laneTask.done;
+    }
+
+    private static String[] unique(String[] devices) {
+        // Duplicates would make the task wait for itself
+        Set<String> unique = new LinkedHashSet<>(Arrays.asList(devices));
+        return unique.toArray(new String[unique.size()]);
+    }
+
+    /**
+     * @return the last rejection, null if all tasks started were accepted
+     */
+    private RejectedExecutionException enqueue(LaneTask laneTask) {
+        List<LaneTask> ready = new ArrayList<>();
+        synchronized (this) {
+            for (String device : laneTask.devices) {
+                ArrayDeque<LaneTask> lane = lanes_.get(device);
+                if (lane == null) {
+                    lane = new ArrayDeque<>();
+                    lanes_.put(device, lane);
+                }
+                lane.addLast(laneTask);
+            }
+            collectReady(laneTask, ready);
+        }
+        return start(ready);
+    }
+
+    /**
+     * Get an executor queuing its tasks on the lanes of the given devices
+     * 
+     * @param devices
+     * @return
+     */
+    public Executor lanes(final String... devices) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submit(command, devices);
+            }
+        };
+    }
+
+    /**
+     * @param device
+     * @return the number of running and pending tasks on the device lane
+     */
+    public synchronized int getQueueLength(String device) {
+        ArrayDeque<LaneTask> lane = lanes_.get(device);
+        return lane == null ? 0 : lane.size();
+    }
+
+    private void finished(LaneTask laneTask) {
+        List<LaneTask> ready = new ArrayList<>();
+        release(laneTask, ready);
+        // Nobody to report a rejection to, the rejected tasks are dropped
+        start(ready);
+    }
+
+    /**
+     * Remove a task from its lanes and collect the tasks it was holding back
+     */
+    private synchronized void release(LaneTask laneTask, List<LaneTask> ready) {
+        for (String device : laneTask.devices) {
+            ArrayDeque<LaneTask> lane = lanes_.get(device);
+            lane.removeFirst();
+            if (lane.isEmpty()) {
+                lanes_.remove(device);
+            } else {
+                collectReady(lane.peekFirst(), ready);
+            }
+        }
+    }
+
+    /**
+     * Mark the task as started if it is first in all its lanes. Called with the
+     * lock held.
+     */
+    private void collectReady(LaneTask laneTask, List<LaneTask> ready) {
+        if (laneTask.started) {
+            return;
+        }
+        for (String device : laneTask.devices) {
+            if (lanes_.get(device).peekFirst() != laneTask) {
+                return;
+            }
+        }
+        laneTask.started = true;
+        ready.add(laneTask);
+    }
+
+    /**
+     * Run the ready tasks. A rejected task releases its lanes, and the tasks it
+     * was holding back are started in turn.
+     * 
+     * @return the last rejection, null if all tasks were accepted
+     */
+    private RejectedExecutionException start(List<LaneTask> ready) {
+        RejectedExecutionException rejected = null;
+        ArrayDeque<LaneTask> pending = new ArrayDeque<>(ready);
+        while (!pending.isEmpty()) {
+            LaneTask laneTask = pending.removeFirst();
+            try {
+                executor_.execute(laneTask);
+            } catch (RejectedExecutionException e) {
+                laneTask.rejected(e);
+                List<LaneTask> next = new ArrayList<>();
+                release(laneTask, next);
+                pending.addAll(next);
+                rejected = e;
+            }
+        }
+        return rejected;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+/**
+ * Coalesces position display updates to a fixed frame rate. Positions posted
+ * between two frames overwrite each other, and only the last value of each axis
+ * is shown. Axes without a known position can be queried from the hardware,
+ * at most once per frame whatever the number of requests.
+ *
+ * Queries run on the refresher thread, the display always runs on the EDT.
+ */
+public abstract class PositionRefresher {
+
+    public static final int XY = 0;
+    public static final int Z = 1;
+    public static final int R = 2;
+    private static final int AXES = 3;
+
+    public static final long DEFAULT_PERIOD_MS = 50;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Stage position refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final long periodMs_;
+    private ScheduledExecutorService timer_;
+    private ScheduledFuture<?> tick_;
+
+    // Guarded by this
+    private final double[] first_ = new double[AXES];
+    private final double[] second_ = new double[AXES];
+    private final boolean[] dirty_ = new boolean[AXES];
+    private final boolean[] query_ = new boolean[AXES];
+
+    // Only used by the refresher thread
+    private final double[] shownFirst_ = new double[AXES];
+    private final double[] shownSecond_ = new double[AXES];
+    private final boolean[] shownDirty_ = new boolean[AXES];
+    private final boolean[] queried_ = new boolean[AXES];
+
+    public PositionRefresher() {
+        this(DEFAULT_PERIOD_MS);
+    }
+
+    /**
+     * @param periodMs minimal time between two display updates
+     */
+    public PositionRefresher(long periodMs) {
+        periodMs_ = periodMs;
+    }
+
+    public synchronized void start() {
+        if (timer_ != null) {
+            return;
+        }
+        timer_ = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+        tick_ = timer_.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, 0, periodMs_, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (timer_ == null) {
+            return;
+        }
+        tick_.cancel(false);
+        timer_.shutdown();
+        timer_ = null;
+        tick_ = null;
+    }
+
+    public void postXY(double x, double y) {
+        post(XY, x, y);
+    }
+
+    public void postZ(double z) {
+        post(Z, z, 0.0);
+    }
+
+    public void postR(double r) {
+        post(R, r, 0.0);
+    }
+
+    private synchronized void post(int axis, double first, double second) {
+        first_[axis] = first;
+        second_[axis] = second;
+        dirty_[axis] = true;
+        // A known position supersedes a pending query
+        query_[axis] = false;
+    }
+
+    /**
+     * Read the position of the axis from the hardware before the next frame
+     *
+     * @param axis one of XY, Z, R
+     */
+    public synchronized void requestQuery(int axis) {
+        query_[axis] = true;
+    }
+
+    private void tick() {
+        synchronized (this) {
+            for (int i = 0; i < AXES; i++) {
+                queried_[i] = query_[i];
+                query_[i] = false;
+            }
+        }
+
+        for (int i = 0; i < AXES; i++) {
+            if (!queried_[i]) {
+                continue;
+            }
+            try {
+                switch (i) {
+                case XY:
+                    double[] xy = queryXY();
+                    postXY(xy[0], xy[1]);
+                    break;
+                case Z:
+                    postZ(queryZ());
+                    break;
+                default:
+                    postR(queryR());
+                    break;
+                }
+            } catch (Exception e) {
+                onQueryError(i, e);
+            }
+        }
+
+        boolean any = false;
+        synchronized (this) {
+            for (int i = 0; i < AXES; i++) {
+                shownDirty_[i] = dirty_[i];
+                shownFirst_[i] = first_[i];
+                shownSecond_[i] = second_[i];
+                dirty_[i] = false;
+                any |= shownDirty_[i];
+            }
+        }
+        if (!any) {
+            return;
+        }
+
+        final boolean xy = shownDirty_[XY];
+        final boolean z = shownDirty_[Z];
+        final boolean r = shownDirty_[R];
+        final double x = shownFirst_[XY];
+        final double y = shownSecond_[XY];
+        final double zPos = shownFirst_[Z];
+        final double rPos = shownFirst_[R];
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (xy) {
+                    showXY(x, y);
+                }
+                if (z) {
+                    showZ(zPos);
+                }
+                if (r) {
+                    showR(rPos);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return XY position of the XY stage
+     * @throws Exception
+     */
+    protected abstract double[] queryXY() throws Exception;
+
+    protected abstract double queryZ() throws Exception;
+
+    protected abstract double queryR() throws Exception;
+
+    /**
+     * Called on the refresher thread when a query fails
+     *
+     * @param axis
+     * @param e
+     */
+    protected abstract void onQueryError(int axis, Exception e);
+
+    // Display methods, called on the EDT
+
+    protected abstract void showXY(double x, double y);
+
+    protected abstract void showZ(double z);
+
+    protected abstract void showR(double r);
+}
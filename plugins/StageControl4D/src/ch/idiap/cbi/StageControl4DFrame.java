@@ -27,8 +27,16 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.Point2D;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
@@ -36,7 +44,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
-import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
 import mmcorej.DeviceType;
 import mmcorej.StrVector;
@@ -49,15 +57,15 @@ import org.micromanager.events.internal.InternalShutdownCommencingEvent;
 import org.micromanager.internal.utils.NumberUtils;
 import org.micromanager.internal.utils.TextUtils;
 import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
 
 public final class StageControl4DFrame extends JFrame {
 
-    private Double[] centers = new Double[] { 2000., 2000., 1200. };
-
     private final Studio studio_;
     private final CMMCore core_;
     private final OpticalRotation rotationManager;
     private CalibrationFrame calibrationFrame_;
+    private TelemetryFrame telemetryFrame_;
 
     private boolean initialized_ = false;
 
@@ -65,6 +73,16 @@ public final class StageControl4DFrame extends JFrame {
     private final int frameYPos_ = 100;
 
     private final ExecutorService stageMotionExecutor_;
+    // One serial lane per device, rotations hold the R, Z and XY lanes together
+    private final DeviceLaneScheduler laneScheduler_;
+    // One queue per axis: jog clicks are merged while the axis moves
+    private final AxisCommandQueue xyQueue_;
+    private final AxisCommandQueue zQueue_;
+    private final AxisCommandQueue rQueue_;
+    // Position labels are refreshed at a fixed rate, from the event values
+    private final PositionRefresher positionRefresher_;
+    private final MotionTelemetry telemetry_;
+    private final StageControlService stageService_;
 
     private static final String[] XY_MOVEMENTS = new String[] { "SMALLMOVEMENT", "MEDIUMMOVEMENT", "LARGEMOVEMENT" };
     private static final String SMALLMOVEMENTZ = "SMALLMOVEMENTZ";
@@ -98,8 +116,15 @@ public final class StageControl4DFrame extends JFrame {
         studio_ = gui;
         core_ = studio_.getCMMCore();
         stageMotionExecutor_ = Executors.newFixedThreadPool(3);
+        laneScheduler_ = new DeviceLaneScheduler(stageMotionExecutor_);
+        xyQueue_ = new AxisCommandQueue(new LaneExecutor(true, false, false), new StageMover(true));
+        zQueue_ = new AxisCommandQueue(new LaneExecutor(false, true, false), new StageMover(false));
+        rQueue_ = new AxisCommandQueue(new LaneExecutor(true, true, true), new RotationMover());
 
         rotationManager = new OpticalRotation(studio_);
+        telemetry_ = MotionTelemetry.get(studio_);
+        stageService_ = new StageControlService(studio_, rotationManager);
+        positionRefresher_ = new LabelRefresher();
 
         initComponents();
 
@@ -128,8 +153,14 @@ public final class StageControl4DFrame extends JFrame {
             xyStepTexts_[i].setText(NumberUtils.doubleToDisplayString(xyStepSizes[i]));
         }
 
-        for (int i = 0; i < 3; ++i) {
-            centers[i] = studio_.profile().getSettings(StageControl4DFrame.class).getDouble(CENTERS[i], centers[i]);
+        // The centre used to be stored with the frame settings
+        MutablePropertyMapView settings = studio_.profile().getSettings(StageControl4DFrame.class);
+        if (!stageService_.hasCentre() && settings.containsKey(CENTERS[0])) {
+            double[] centre = stageService_.getCentre();
+            for (int i = 0; i < 3; ++i) {
+                centre[i] = settings.getDouble(CENTERS[i], centre[i]);
+            }
+            stageService_.setCentre(centre);
         }
 
         StrVector zDrives = core_.getLoadedDevicesOfType(DeviceType.StageDevice);
@@ -199,11 +230,7 @@ public final class StageControl4DFrame extends JFrame {
         initialized_ = true;
 
         if (xyDrives.size() != 0) {
-            try {
-                getXYPosLabelFromCore();
-            } catch (Exception e) {
-                studio_.logs().logError(e, "Unable to get XY stage position");
-            }
+            positionRefresher_.requestQuery(PositionRefresher.XY);
         }
         // guarantee that the z-position shown is correct:
         if (zDriveFound) {
@@ -622,6 +649,16 @@ public final class StageControl4DFrame extends JFrame {
         });
         result.add(presetButton, "width 100!, height 20!, gaptop 5");
 
+        presetButton = new JButton("Telemetry");
+        presetButton.setFont(new Font("Arial", Font.PLAIN, 10));
+        presetButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                openTelemetry();
+            }
+        });
+        result.add(presetButton, "width 100!, height 20!, gaptop 5");
+
         presetButton = new JButton("RECOVERY");
         presetButton.setFont(new Font("Arial", Font.BOLD, 10));
         presetButton.addActionListener(new ActionListener() {
@@ -630,7 +667,7 @@ public final class StageControl4DFrame extends JFrame {
                 recoverStage();
             }
         });
-        result.add(presetButton, "width 100!, height 30!, gaptop 100");
+        result.add(presetButton, "width 100!, height 30!, gaptop 75");
 
         return result;
     }
@@ -642,6 +679,13 @@ public final class StageControl4DFrame extends JFrame {
         calibrationFrame_.open();
     }
 
+    private void openTelemetry() {
+        if (telemetryFrame_ == null) {
+            telemetryFrame_ = new TelemetryFrame(this, studio_);
+        }
+        telemetryFrame_.open();
+    }
+
     private JPanel createErrorPanel() {
         // Provide a friendly message when there are no drives in the device list
         JLabel noDriveLabel = new javax.swing.JLabel("No XY, Z drive and twister found.  Nothing to control.");
@@ -689,15 +733,11 @@ public final class StageControl4DFrame extends JFrame {
         // then update the current Z Drive
         String curDrive = (String) zDriveSelect_.getSelectedItem();
         if (curDrive != null && initialized_) {
+            zQueue_.clear();
             rotationManager.setZStage(curDrive);
             // Remember step sizes for this new drive.
             updateZMovements();
-            try {
-                getZPosLabelFromCore();
-            } catch (Exception ex) {
-                studio_.logs().logError(ex,
-                        "Failed to pull position from core for Z drive " + rotationManager.getZStage());
-            }
+            positionRefresher_.requestQuery(PositionRefresher.Z);
         }
     }
 
@@ -707,147 +747,117 @@ public final class StageControl4DFrame extends JFrame {
         // then update the current Z Drive
         String curDrive = (String) rDriveSelect_.getSelectedItem();
         if (curDrive != null && initialized_) {
+            rQueue_.clear();
             rotationManager.setRStage(curDrive);
             // Remember step sizes for this new drive.
             updateRMovements();
-            try {
-                getRPosLabelFromCore();
-            } catch (Exception ex) {
-                studio_.logs().logError(ex,
-                        "Failed to pull position from core for R drive " + rotationManager.getRStage());
-            }
+            positionRefresher_.requestQuery(PositionRefresher.R);
         }
     }
 
     private void setRelativeXYStagePosition(double x, double y) {
-        try {
-            if (!core_.deviceBusy(core_.getXYStageDevice())) {
-                StageThread st = new StageThread(core_.getXYStageDevice(), x, y);
-                stageMotionExecutor_.execute(st);
-            }
-        } catch (Exception e) {
-            studio_.logs().logError(e);
-        }
+        xyQueue_.add(x, y);
     }
 
     private void setRelativeZStagePosition(double z) {
-        try {
-            String currentZDrive_ = rotationManager.getZStage();
-            if (!core_.deviceBusy(currentZDrive_)) {
-                StageThread st = new StageThread(currentZDrive_, z);
-                stageMotionExecutor_.execute(st);
-            }
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        zQueue_.add(z);
     }
 
     private void setRelativeRStagePosition(double r) {
-        try {
-            String currentRDrive_ = rotationManager.getRStage();
-            if (!core_.deviceBusy(currentRDrive_)) {
-                RotationThread st = new RotationThread(r);
-                stageMotionExecutor_.execute(st);
-            }
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        rQueue_.add(r);
     }
 
     private void recoverStage() {
-        try {
-            core_.initializeDevice(core_.getXYStageDevice());
-            core_.initializeDevice(rotationManager.getRStage());
-            core_.initializeDevice(rotationManager.getZStage());
-            studio_.logs().logMessage("Stage drivers reloaded");
-            JOptionPane.showMessageDialog(this, "Device recovery successful");
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        // Not queued on the lanes: they may be held by the stages to recover
+        stageService_.recover().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, final Throwable error) {
+                requestPositions();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (error == null) {
+                            JOptionPane.showMessageDialog(StageControl4DFrame.this, "Device recovery successful");
+                        } else {
+                            studio_.logs().showError(new ExecutionException(error));
+                        }
+                    }
+                });
+            }
+        });
     }
 
     private void homeXYStage() {
-        try {
-            if (!core_.deviceBusy(core_.getXYStageDevice())) {
-                core_.home(core_.getXYStageDevice());
-                core_.waitForDevice(core_.getXYStageDevice());
-
-                getXYPosLabelFromCore();
-
+        submitAction(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return stageService_.homeXY();
             }
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        }, core_.getXYStageDevice());
     }
 
     private void homeZStage() {
-        try {
-            String currentZDrive_ = rotationManager.getZStage();
-            if (!core_.deviceBusy(currentZDrive_)) {
-                core_.home(currentZDrive_);
-                core_.waitForDevice(currentZDrive_);
-
-                getZPosLabelFromCore();
-
+        submitAction(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return stageService_.homeZ();
             }
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        }, rotationManager.getZStage());
     }
 
     private void centerStage() {
-        try {
-            core_.waitForDevice(core_.getXYStageDevice());
-            core_.setXYPosition(centers[0], centers[1]);
-            core_.waitForDevice(core_.getXYStageDevice());
-
-            core_.waitForDevice(rotationManager.getZStage());
-            core_.setPosition(rotationManager.getZStage(), centers[2]);
-            core_.waitForDevice(rotationManager.getZStage());
-
-            getXYPosLabelFromCore();
-            getZPosLabelFromCore();
-
-        } catch (Exception ex) {
-            studio_.logs().logError(ex);
-        }
+        submitAction(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return stageService_.centre();
+            }
+        }, core_.getXYStageDevice(), rotationManager.getZStage());
     }
 
     private void registerCenter() {
-        try {
-            Point2D.Double pos = core_.getXYStagePosition(core_.getXYStageDevice());
-            double zPos = core_.getPosition(rotationManager.getZStage());
-
-            centers[0] = pos.x;
-            centers[1] = pos.y;
-            centers[2] = zPos;
-
-            for (int i = 0; i < 3; ++i) {
-                studio_.profile().getSettings(StageControl4DFrame.class).putDouble(CENTERS[i], centers[i]);
+        submitAction(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return stageService_.registerCentre();
             }
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        }, core_.getXYStageDevice(), rotationManager.getZStage());
     }
 
     private void zeroRStage() {
-        try {
-            String currentRDrive_ = rotationManager.getRStage();
-            if (!core_.deviceBusy(currentRDrive_)) {
-                core_.setOrigin(currentRDrive_);
-                core_.waitForDevice(currentRDrive_);
+        submitAction(new Callable<CompletionStage<?>>() {
+            @Override
+            public CompletionStage<?> call() {
+                return stageService_.zeroR();
+            }
+        }, rotationManager.getRStage());
+    }
 
-                core_.sleep(250);
-                getRPosLabelFromCore();
+    /**
+     * Run a stage service action on the lanes of its devices, so that it is
+     * ordered with the jog moves. The lanes are held until the action completes,
+     * without blocking a thread of the motion pool.
+     */
+    private void submitAction(Callable<CompletionStage<?>> action, String... devices) {
+        laneScheduler_.submitAsync(action, devices).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable error) {
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                if (error instanceof Exception) {
+                    studio_.logs().showError((Exception) error);
+                } else if (error != null) {
+                    studio_.logs().showError(new ExecutionException(error));
+                }
+                requestPositions();
             }
-        } catch (Exception ex) {
-            studio_.logs().showError(ex);
-        }
+        });
     }
 
-    private void getXYPosLabelFromCore() throws Exception {
-        Point2D.Double pos = core_.getXYStagePosition(core_.getXYStageDevice());
-        setXYPosLabel(pos.x, pos.y);
+    private void requestPositions() {
+        positionRefresher_.requestQuery(PositionRefresher.XY);
+        positionRefresher_.requestQuery(PositionRefresher.Z);
+        positionRefresher_.requestQuery(PositionRefresher.R);
     }
 
     private void setXYPosLabel(double x, double y) {
@@ -856,16 +866,6 @@ public final class StageControl4DFrame extends JFrame {
                 TextUtils.removeNegativeZero(NumberUtils.doubleToDisplayString(y))));
     }
 
-    private void getZPosLabelFromCore() throws Exception {
-        double zPos = core_.getPosition(rotationManager.getZStage());
-        setZPosLabel(zPos);
-    }
-
-    private void getRPosLabelFromCore() throws Exception {
-        double rPos = core_.getPosition(rotationManager.getRStage());
-        setRPosLabel(rPos);
-    }
-
     private void setZPosLabel(double z) {
         zPositionLabel_.setText(TextUtils.removeNegativeZero(NumberUtils.doubleToDisplayString(z)) + " \u00B5m");
     }
@@ -882,16 +882,16 @@ public final class StageControl4DFrame extends JFrame {
     @Subscribe
     public void onStagePositionChanged(StagePositionChangedEvent event) {
         if (event.getDeviceName().contentEquals(rotationManager.getZStage())) {
-            setZPosLabel(event.getPos());
+            positionRefresher_.postZ(event.getPos());
         } else if (event.getDeviceName().contentEquals(rotationManager.getRStage())) {
-            setRPosLabel(event.getPos());
+            positionRefresher_.postR(event.getPos());
         }
     }
 
     @Subscribe
     public void onXYStagePositionChanged(XYStagePositionChangedEvent event) {
         if (event.getDeviceName().contentEquals(core_.getXYStageDevice())) {
-            setXYPosLabel(event.getXPos(), event.getYPos());
+            positionRefresher_.postXY(event.getXPos(), event.getYPos());
         }
     }
 
@@ -915,73 +915,144 @@ public final class StageControl4DFrame extends JFrame {
         storeZValuesInProfile();
         storeRValuesInProfile();
 
+        if (calibrationFrame_ != null) {
+            calibrationFrame_.dispose();
+        }
+        if (telemetryFrame_ != null) {
+            telemetryFrame_.dispose();
+        }
         super.dispose();
     }
 
-    private class StageThread implements Runnable {
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        // Resynchronize the labels with the hardware when the frame is shown again
+        if (initialized_) {
+            requestPositions();
+        }
+        positionRefresher_.start();
+    }
 
-        final String device_;
-        final boolean isXYStage_;
-        final double x_;
-        final double y_;
-        final double z_;
+    @Override
+    public void removeNotify() {
+        positionRefresher_.stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Queues tasks on the lanes of the current drives, resolved when the task is
+     * queued
+     */
+    private class LaneExecutor implements Executor {
+
+        final boolean xy_;
+        final boolean z_;
+        final boolean r_;
 
-        public StageThread(String device, double z) {
-            device_ = device;
+        public LaneExecutor(boolean xy, boolean z, boolean r) {
+            xy_ = xy;
             z_ = z;
-            x_ = y_ = 0;
-            isXYStage_ = false;
+            r_ = r;
         }
 
-        public StageThread(String device, double x, double y) {
-            device_ = device;
-            x_ = x;
-            y_ = y;
-            z_ = 0;
-            isXYStage_ = true;
+        @Override
+        public void execute(Runnable command) {
+            List<String> devices = new ArrayList<>();
+            if (xy_) {
+                devices.add(core_.getXYStageDevice());
+            }
+            if (z_) {
+                devices.add(rotationManager.getZStage());
+            }
+            if (r_) {
+                devices.add(rotationManager.getRStage());
+            }
+            laneScheduler_.submit(command, devices.toArray(new String[devices.size()]));
+        }
+    }
+
+    private class StageMover implements AxisCommandQueue.Mover {
+
+        final boolean isXYStage_;
+
+        public StageMover(boolean isXYStage) {
+            isXYStage_ = isXYStage;
         }
 
         @Override
-        public void run() {
+        public void move(double first, double second) {
             try {
-                core_.waitForDevice(device_);
-                if (isXYStage_) {
-                    core_.setRelativeXYPosition(device_, x_, y_);
-                } else {
-                    core_.setRelativePosition(device_, z_);
-                }
-                core_.waitForDevice(device_);
+                String device = isXYStage_ ? core_.getXYStageDevice() : rotationManager.getZStage();
+                long waitStart = System.nanoTime();
+                core_.waitForDevice(device);
+                long issueStart = System.nanoTime();
                 if (isXYStage_) {
-                    getXYPosLabelFromCore();
+                    core_.setRelativeXYPosition(device, first, second);
                 } else {
-                    getZPosLabelFromCore();
+                    core_.setRelativePosition(device, first);
                 }
+                long issued = telemetry_.recordIssue(device, waitStart, issueStart);
+                core_.waitForDevice(device);
+                telemetry_.record(device, MotionTelemetry.Metric.SETTLE, System.nanoTime() - issued);
+                positionRefresher_.requestQuery(isXYStage_ ? PositionRefresher.XY : PositionRefresher.Z);
             } catch (Exception ex) {
                 studio_.logs().logError(ex);
             }
         }
     }
 
-    private class RotationThread implements Runnable {
-
-        final double angle_;
-
-        public RotationThread(double angle) {
-            angle_ = angle;
-        }
+    private class RotationMover implements AxisCommandQueue.Mover {
 
         @Override
-        public void run() {
+        public void move(double angle, double unused) {
             try {
-                rotationManager.rotate(angle_);
+                rotationManager.rotate(angle);
 
-                getXYPosLabelFromCore();
-                getZPosLabelFromCore();
-                getRPosLabelFromCore();
+                requestPositions();
 
             } catch (Exception ex) {
                 studio_.logs().logError(ex);
             }
         }
     }
-}
\ No newline at end of file
+
+    private class LabelRefresher extends PositionRefresher {
+
+        @Override
+        protected double[] queryXY() throws Exception {
+            Point2D.Double pos = core_.getXYStagePosition(core_.getXYStageDevice());
+            return new double[] { pos.x, pos.y };
+        }
+
+        @Override
+        protected double queryZ() throws Exception {
+            return core_.getPosition(rotationManager.getZStage());
+        }
+
+        @Override
+        protected double queryR() throws Exception {
+            return core_.getPosition(rotationManager.getRStage());
+        }
+
+        @Override
+        protected void onQueryError(int axis, Exception e) {
+            studio_.logs().logError(e, "Unable to get stage position");
+        }
+
+        @Override
+        protected void showXY(double x, double y) {
+            setXYPosLabel(x, y);
+        }
+
+        @Override
+        protected void showZ(double z) {
+            setZPosLabel(z);
+        }
+
+        @Override
+        protected void showR(double r) {
+            setRPosLabel(r);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+* Copyright (c) 2021 Idiap Research Institute, http://www.idiap.ch/
+* Written by François Marelli <francois.marelli@idiap.ch>
+* 
+* This file is part of CBI-MMTools.
+* 
+* CBI-MMTools is free software: you can redistribute it and/or modify
+* it under the terms of the 3-Clause BSD License.
+* 
+* CBI-MMTools is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* 3-Clause BSD License for more details.
+* 
+* You should have received a copy of the 3-Clause BSD License along
+* with CBI-MMTools. If not, see https://opensource.org/licenses/BSD-3-Clause.
+* 
+* SPDX-License-Identifier: BSD-3-Clause 
+*/
+
+package ch.idiap.cbi;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.Studio;
+
+/**
+ * Live view of the stage motion latencies recorded in {@link MotionTelemetry},
+ * with CSV and JSON export
+ */
+public class TelemetryFrame extends JFrame {
+
+    private static final int REFRESH_MS = 1000;
+    private static final String[] COLUMNS = new String[] { "Source", "Metric", "Count", "Min (ms)", "Mean (ms)",
+            "p50 (ms)", "p90 (ms)", "p99 (ms)", "Max (ms)" };
+
+    private final Component parent_;
+    private final Studio studio_;
+    private final MotionTelemetry telemetry_;
+    private final Timer refreshTimer_;
+    private DefaultTableModel model_;
+
+    public TelemetryFrame(Component parent, Studio studio) {
+        parent_ = parent;
+        studio_ = studio;
+        telemetry_ = MotionTelemetry.get(studio);
+        refreshTimer_ = new Timer(REFRESH_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        initComponents();
+    }
+
+    public void open() {
+        refresh();
+        refreshTimer_.start();
+        this.setVisible(true);
+    }
+
+    @Override
+    public void dispose() {
+        refreshTimer_.stop();
+        super.dispose();
+    }
+
+    private void refresh() {
+        model_.setRowCount(0);
+        for (String source : telemetry_.getSources()) {
+            for (MotionTelemetry.Metric metric : MotionTelemetry.Metric.values()) {
+                LatencyHistogram histogram = telemetry_.getHistogram(source, metric);
+                if (histogram == null || histogram.getCount() == 0) {
+                    continue;
+                }
+                double[] summary = MotionTelemetry.summary(histogram);
+                Object[] row = new Object[COLUMNS.length];
+                row[0] = source;
+                row[1] = metric;
+                row[2] = histogram.getCount();
+                for (int i = 0; i < summary.length; i++) {
+                    row[3 + i] = String.format("%.2f", summary[i]);
+                }
+                model_.addRow(row);
+            }
+        }
+    }
+
+    private void export(boolean json) {
+        JFileChooser fc = new JFileChooser();
+        fc.setSelectedFile(new File(json ? "telemetry.json" : "telemetry.csv"));
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        String content = json ? telemetry_.toJson() : telemetry_.toCsv();
+        try (Writer writer = Files.newBufferedWriter(fc.getSelectedFile().toPath(), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        } catch (IOException e) {
+            studio_.logs().showError(e, "Unable to export the telemetry");
+        }
+    }
+
+    private void initComponents() {
+        setTitle("Stage motion telemetry");
+        setLocationRelativeTo(parent_);
+
+        this.setLayout(new MigLayout("insets 5, gap 10, fill"));
+
+        model_ = new DefaultTableModel(COLUMNS, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable table = new JTable(model_);
+        table.setFillsViewportHeight(true);
+        this.add(new JScrollPane(table), "span, grow, width 650, height 250, wrap");
+
+        JButton button = new JButton("Reset");
+        button.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int result = JOptionPane.showConfirmDialog(TelemetryFrame.this, "Clear all the recorded latencies?",
+                        "Reset telemetry", JOptionPane.YES_NO_OPTION);
+                if (result == JOptionPane.YES_OPTION) {
+                    telemetry_.reset();
+                    refresh();
+                }
+            }
+        });
+        this.add(button, "split 3");
+
+        button = new JButton("Export CSV");
+        button.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                export(false);
+            }
+        });
+        this.add(button);
+
+        button = new JButton("Export JSON");
+        button.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                export(true);
+            }
+        });
+        this.add(button);
+
+        pack();
+    }
+}